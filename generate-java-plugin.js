@@ -4,7 +4,9 @@ var makeTypes = require('./utils/Types');
 
 module.exports.use = function(config, options) {
   config.passes.transform.push(
-    require('./passes/inference-type')
+    require('./passes/inline-rules'),
+    require('./passes/inference-type'),
+    require('./passes/compute-first-sets')
   );
   config.passes.generate = [
     require('./passes/generate-java'),
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.bench;
+
+import java.util.Random;
+import org.pegjs.java.IBaseParser;
+import org.pegjs.java.ParseResult;
+import org.pegjs.java.bench.generated.ArithmeticParser;
+import org.pegjs.java.bench.generated.CsvParser;
+import org.pegjs.java.bench.generated.JsonParser;
+import org.pegjs.java.bench.generated.JsonTwoPassParser;
+import org.pegjs.java.bench.generated.SqlParser;
+
+/**
+ * Эталонные данные для тестов производительности: парсеры эталонных грамматик и корректные
+ * для них данные заданного размера, а также те же данные с ошибкой в заданном месте. Данные генерируются детерминированно и содержат только
+ * символы ASCII, поэтому их разбор из строки, массива байт и буфера дает один и тот же результат.
+ *
+ * @author Mingun
+ */
+final class Corpus {
+    private Corpus() {}
+
+    /**
+     * Создает парсер эталонной грамматики.
+     * @param grammar Название грамматики: {@code arithmetic}, {@code json}, {@code json-two-pass}
+     *        (JSON с двухпроходным формированием ошибок), {@code csv} или {@code sql}.
+     * @return Новый парсер.
+     */
+    static IBaseParser<?> parser(String grammar) {
+        switch (grammar) {
+            case "arithmetic":    return new ArithmeticParser();
+            case "json":          return new JsonParser();
+            case "json-two-pass": return new JsonTwoPassParser();
+            case "csv":           return new CsvParser();
+            case "sql":           return new SqlParser();
+        }
+        throw new IllegalArgumentException("Unknown grammar: " + grammar);
+    }
+    /**
+     * Возвращает размер данных в символах по его названию.
+     * @param size {@code small} (1 КБ), {@code medium} (64 КБ) или {@code large} (4 МБ).
+     */
+    static int size(String size) {
+        switch (size) {
+            case "small":  return 1 << 10;
+            case "medium": return 1 << 16;
+            case "large":  return 1 << 22;
+        }
+        throw new IllegalArgumentException("Unknown corpus size: " + size);
+    }
+    /**
+     * Генерирует данные для указанной грамматики размером не менее указанного.
+     * @param grammar Название грамматики, как для {@link #parser}.
+     * @param size Минимальный размер данных в символах.
+     * @return Данные, которые разбираются парсером грамматики без ошибок.
+     */
+    static String generate(String grammar, int size) {
+        final Random random = new Random(size);
+        final StringBuilder sb = new StringBuilder(size + 256);
+        switch (grammar) {
+            case "arithmetic":
+                arithmetic(sb, random, size);
+                break;
+            case "json":
+            case "json-two-pass":
+                json(sb, random, size);
+                break;
+            case "csv":
+                csv(sb, random, size);
+                break;
+            case "sql":
+                sql(sb, random, size);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown grammar: " + grammar);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Возвращает положение ошибки в данных в процентах от их размера по названию вида данных.
+     * @param input {@code valid} (корректные данные), {@code error-50} (ошибка в середине данных)
+     *        или {@code error-99} (ошибка в самом конце данных).
+     * @return Положение ошибки или -1 для корректных данных.
+     */
+    static int errorAt(String input) {
+        switch (input) {
+            case "valid":    return -1;
+            case "error-50": return 50;
+            case "error-99": return 99;
+        }
+        throw new IllegalArgumentException("Unknown input kind: " + input);
+    }
+    /** Символы, которые вставляются в данные, чтобы сделать их некорректными. */
+    private static final char[] INVALID = { '#', '"' };
+    /**
+     * Вставляет в корректные данные символ так, чтобы разбор завершился ошибкой в указанном
+     * месте. Символ вставляется в ближайшую за ним позицию, в которой он действительно приводит
+     * к ошибке, например, не внутри строкового литерала, поэтому парсер разбирает все данные
+     * перед ошибкой.
+     * @param parser Парсер грамматики, для которой сгенерированы данные.
+     * @param text Корректные данные.
+     * @param percent Положение ошибки в процентах от размера данных.
+     * @return Данные, разбор которых завершается ошибкой.
+     */
+    static String corrupt(IBaseParser<?> parser, String text, int percent) {
+        final int from = (int)((long)text.length() * percent / 100);
+        for (int i = from; i < text.length(); ++i) {
+            for (char ch : INVALID) {
+                final String result = text.substring(0, i) + ch + text.substring(i);
+                final ParseResult<?> r = parser.tryParse(result);
+                // Ошибка должна быть сразу на вставленном символе или за ним, а не дальше, где
+                // закончится, например, начатый им строковый литерал.
+                if (!r.isSuccess() && r.location() != null
+                 && r.location().start().offset() >= i && r.location().start().offset() <= i + 1
+                ) {
+                    return result;
+                }
+            }
+        }
+        throw new IllegalStateException("Can't corrupt data at " + percent + "%");
+    }
+
+    private static void arithmetic(StringBuilder sb, Random random, int size) {
+        term(sb, random, 2);
+        while (sb.length() < size) {
+            sb.append(random.nextBoolean() ? " + " : " - ");
+            term(sb, random, 2);
+            if (random.nextInt(8) == 0) {
+                sb.append('\n');
+            }
+        }
+    }
+    private static void term(StringBuilder sb, Random random, int depth) {
+        if (depth > 0 && random.nextInt(4) == 0) {
+            sb.append('(');
+            term(sb, random, depth - 1);
+            sb.append(random.nextBoolean() ? " + " : " - ");
+            term(sb, random, depth - 1);
+            sb.append(')');
+        } else {
+            sb.append(random.nextInt(1000));
+        }
+        switch (random.nextInt(4)) {
+            case 0: sb.append(" * ").append(random.nextInt(100)); break;
+            // Делим только на ненулевые числа, а не на выражения, которые могут оказаться нулем.
+            case 1: sb.append(" / ").append(1 + random.nextInt(99)); break;
+        }
+    }
+
+    private static void json(StringBuilder sb, Random random, int size) {
+        sb.append("[\n");
+        for (int i = 0; sb.length() < size; ++i) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append("  {\"id\": ").append(i)
+              .append(", \"name\": \"item ").append(random.nextInt(100000)).append('"')
+              .append(", \"score\": ").append(random.nextInt(2000) - 1000).append('.').append(random.nextInt(100))
+              .append("e").append(random.nextInt(5))
+              .append(", \"active\": ").append(random.nextBoolean())
+              .append(", \"parent\": ").append(i > 0 && random.nextBoolean() ? String.valueOf(i - 1) : "null")
+              .append(", \"tags\": [");
+            final int tags = random.nextInt(4);
+            for (int t = 0; t < tags; ++t) {
+                if (t > 0) {
+                    sb.append(", ");
+                }
+                sb.append("\"tag").append(random.nextInt(10)).append('"');
+            }
+            sb.append("], \"note\": \"line\\none \\\"quoted\\\" \\u0041\\u00e9\\t\"}");
+        }
+        sb.append("\n]\n");
+    }
+
+    private static void csv(StringBuilder sb, Random random, int size) {
+        sb.append("id,name,amount,comment,flag\r\n");
+        for (int i = 0; sb.length() < size; ++i) {
+            sb.append(i).append(',')
+              .append("name").append(random.nextInt(1000)).append(',')
+              .append(random.nextInt(100000)).append('.').append(random.nextInt(100)).append(',');
+            if (random.nextBoolean()) {
+                sb.append("\"comment, with \"\"quotes\"\" ").append(random.nextInt(100)).append('"');
+            } else {
+                sb.append("plain comment ").append(random.nextInt(100));
+            }
+            sb.append(',').append(random.nextBoolean() ? "Y" : "").append("\r\n");
+        }
+    }
+
+    private static final String[] TABLES  = { "users", "orders", "items", "invoices", "selection" };
+    private static final String[] COLUMNS = { "id", "name", "price", "created", "order_id", "from_date" };
+
+    private static void sql(StringBuilder sb, Random random, int size) {
+        while (sb.length() < size) {
+            final String table = TABLES[random.nextInt(TABLES.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append("SELECT ").append(random.nextBoolean() ? "*" : "id, name, price")
+                      .append(" FROM ").append(table);
+                    where(sb, random);
+                    if (random.nextBoolean()) {
+                        sb.append(" order by ").append(COLUMNS[random.nextInt(COLUMNS.length)]).append(" desc");
+                    }
+                    break;
+                case 1:
+                    sb.append("insert into ").append(table).append(" (id, name, price) values (")
+                      .append(random.nextInt(10000)).append(", 'name ''").append(random.nextInt(100))
+                      .append("''', ").append(random.nextInt(1000)).append('.').append(random.nextInt(100)).append(')');
+                    break;
+                case 2:
+                    sb.append("Update ").append(table).append(" Set price = ").append(random.nextInt(1000))
+                      .append(", name = 'x'");
+                    where(sb, random);
+                    break;
+                default:
+                    sb.append("DELETE FROM ").append(table);
+                    where(sb, random);
+            }
+            sb.append(";\n");
+        }
+    }
+    private static void where(StringBuilder sb, Random random) {
+        if (random.nextInt(4) == 0) {
+            return;
+        }
+        sb.append(" WHERE ");
+        final int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                sb.append(random.nextBoolean() ? " AND " : " or ");
+            }
+            sb.append(COLUMNS[random.nextInt(COLUMNS.length)])
+              .append(random.nextBoolean() ? " >= " : " <> ")
+              .append(random.nextInt(1000));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pegjs.java.IBaseParser;
+import org.pegjs.java.exceptions.SyntaxError;
+
+/**
+ * Измеряет время разбора эталонных данных парсерами эталонных грамматик (см. {@link Corpus})
+ * для каждого вида разбираемых данных. Парсер создается один раз для каждого потока и
+ * используется повторно, как при разборе множества документов.
+ * <p>
+ * Данные с ошибками позволяют сравнить однопроходное и двухпроходное ({@code json} и
+ * {@code json-two-pass}) формирование ошибок: второй проход повторяет разбор данных до места
+ * ошибки, поэтому его цена зависит от того, насколько далеко от начала она находится.
+ * Ошибка разбора не выбрасывается из тестов, а возвращается как их результат.
+ * <p>
+ * Запуск с профилировщиком сборщика мусора ({@code -prof gc}, его включает {@link #main} и
+ * цель {@code run} сборки) сообщает также объем памяти, выделяемой на один разбор.
+ *
+ * @author Mingun
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    /** Название эталонной грамматики (см. {@link Corpus#parser}). */
+    @Param({"arithmetic", "json", "json-two-pass", "csv", "sql"})
+    public String grammar;
+    /** Размер разбираемых данных (см. {@link Corpus#size}). */
+    @Param({"small", "medium", "large"})
+    public String size;
+    /** Вид разбираемых данных: корректные или с ошибкой (см. {@link Corpus#errorAt}). */
+    @Param({"valid", "error-50", "error-99"})
+    public String input;
+
+    private IBaseParser<?> parser;
+    private String text;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        parser = Corpus.parser(grammar);
+        final String valid = Corpus.generate(grammar, Corpus.size(size));
+        final int error = Corpus.errorAt(input);
+        if (error < 0) {
+            // Проверяем данные до начала измерений, чтобы не измерять формирование ошибки.
+            parser.parse(valid);
+            text = valid;
+        } else {
+            text = Corpus.corrupt(parser, valid, error);
+        }
+        // Данные содержат только ASCII, поэтому байты совпадают с символами.
+        bytes  = text.getBytes(StandardCharsets.ISO_8859_1);
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    @Benchmark
+    public Object parseCharSequence() {
+        try {
+            return parser.parse(text);
+        } catch (SyntaxError ex) {
+            return ex;
+        }
+    }
+    @Benchmark
+    public Object parseByteBuffer() {
+        try {
+            return parser.parse(buffer);
+        } catch (SyntaxError ex) {
+            return ex;
+        }
+    }
+    @Benchmark
+    public Object parseBytes() {
+        try {
+            return parser.parse(bytes);
+        } catch (SyntaxError ex) {
+            return ex;
+        }
+    }
+    /** Разбор без исключений: ошибка возвращается в результате разбора. */
+    @Benchmark
+    public Object tryParseCharSequence() {
+        return parser.tryParse(text);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ParseBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build()
+        ).run();
+    }
+}
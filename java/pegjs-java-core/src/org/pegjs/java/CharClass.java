@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.Serializable;
+
+/**
+ * Скомпилированный класс символов. Символы ASCII проверяются по 128-битной маске, остальные --
+ * двоичным поиском по отсортированному списку непересекающихся диапазонов. Регистронезависимые
+ * классы символов генератор разворачивает заранее, добавляя в класс все варианты регистра символов,
+ * поэтому проверка символа никогда не создает объектов.
+ * <p>
+ * Экземпляры класса неизменяемы и создаются генерируемым кодом как константы парсера.
+ *
+ * @author Mingun
+ */
+public final class CharClass implements Serializable {
+    private static final long serialVersionUID = 8203571430512963482L;
+
+    /** Маска символов с кодами {@code [0; 63]}. */
+    private final long low;
+    /** Маска символов с кодами {@code [64; 127]}. */
+    private final long high;
+    /**
+     * Отсортированный список границ диапазонов символов с кодами больше 127. Элементы с четными
+     * индексами -- начала диапазонов, с нечетными -- их концы (включительно).
+     */
+    private final char[] ranges;
+    /** Если `true`, класс содержит все символы, кроме перечисленных. */
+    private final boolean inverted;
+
+    /**
+     * @param low Маска символов с кодами {@code [0; 63]}: бит {@code i} соответствует символу с кодом {@code i}.
+     * @param high Маска символов с кодами {@code [64; 127]}: бит {@code i} соответствует символу с кодом {@code 64 + i}.
+     * @param ranges Строка из пар символов, задающих начало и конец (включительно) диапазонов символов
+     *        с кодами больше 127. Диапазоны должны быть отсортированы и не пересекаться.
+     * @param inverted Если `true`, класс содержит все символы, кроме перечисленных.
+     */
+    public CharClass(long low, long high, String ranges, boolean inverted) {
+        if (ranges.length() % 2 != 0) {
+            throw new IllegalArgumentException("'ranges' must contain pairs of chars: "+ranges.length());
+        }
+        this.low = low;
+        this.high = high;
+        this.ranges = ranges.toCharArray();
+        this.inverted = inverted;
+    }
+
+    /**
+     * Проверяет, принадлежит ли символ классу.
+     * @param ch Проверяемый символ.
+     * @return `true`, если символ принадлежит классу, иначе `false`.
+     */
+    public boolean matches(char ch) {
+        final boolean result;
+        if (ch < 64) {
+            result = (low & (1L << ch)) != 0;
+        } else
+        if (ch < 128) {
+            result = (high & (1L << (ch - 64))) != 0;
+        } else {
+            result = inRanges(ch);
+        }
+        return result ^ inverted;
+    }
+
+    /**
+     * Проверяет, принадлежит ли символ с указанным кодом классу. Классы символов описываются
+     * символами UTF-16, поэтому символ вне базовой плоскости Unicode принадлежит классу, если
+     * ему принадлежат оба суррогата, которыми он записывается в UTF-16.
+     * @param codePoint Код проверяемого символа.
+     * @return `true`, если символ принадлежит классу, иначе `false`.
+     */
+    public boolean matches(int codePoint) {
+        if (codePoint <= Character.MAX_VALUE) {
+            return matches((char)codePoint);
+        }
+        return matches(Character.highSurrogate(codePoint)) && matches(Character.lowSurrogate(codePoint));
+    }
+
+    private boolean inRanges(char ch) {
+        int lo = 0;
+        int hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (ch < ranges[2 * mid]) {
+                hi = mid - 1;
+            } else
+            if (ch > ranges[2 * mid + 1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
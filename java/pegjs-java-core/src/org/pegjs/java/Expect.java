@@ -25,7 +25,9 @@ package org.pegjs.java;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import org.pegjs.java.exceptions.SyntaxError;
 
 class Expect implements Serializable {
     private static final long serialVersionUID = 5192938999614921064L;
@@ -40,27 +42,71 @@ class Expect implements Serializable {
      * случае игнорируется.
      */
     protected int silent = 0;
+    /**
+     * Если `false`, ожидаемые элементы не запоминаются вовсе. Используется при первом проходе
+     * двухпроходного разбора, когда сообщение об ошибке формировать не нужно.
+     */
+    protected boolean collect = true;
     /**
      * Список имен правил подстрок или классов символов, которые могут
-     * ожидаться при разборе правила в позиции {@link #pos}. Храним в виде
-     * списка а не множества, потому как добавление в список быстрее, а он
-     * нам может и не понадобиться. Поэтому сортируется он только тогда,
-     * когда это действительно нужно.
+     * ожидаться при разборе правила в позиции {@link #pos}, без повторов, в порядке
+     * записи. Храним в виде списка а не множества, потому как добавление в список
+     * быстрее, а он нам может и не понадобиться. Поэтому сортируется он только тогда,
+     * когда это действительно нужно, при обращении к {@link SyntaxError#candidates()}.
      */
     protected final List<Expected> candidates = new ArrayList<>();
+    /**
+     * Битовое множество {@link Expected#id номеров} ожиданий из {@link #candidates}. Одни и те
+     * же ожидания записываются в одной позиции многократно (при каждой попытке разобрать
+     * правило), множество позволяет отбросить повторы без поиска в списке.
+     */
+    private long[] seen = new long[1];
 
+    /** Забывает собранные ожидания, чтобы объект можно было использовать для нового разбора. */
+    protected void reset() {
+        pos.reset(null);
+        silent = 0;
+        collect = true;
+        clear();
+    }
+    /** Забывает ожидания, собранные в позиции {@link #pos}. */
+    protected final void clear() {
+        // Очищаем только установленные биты, а не все множество: их обычно единицы.
+        for (final Expected e : candidates) {
+            if (e.id >= 0) {
+                seen[e.id >>> 6] = 0;
+            }
+        }
+        candidates.clear();
+    }
     protected void add(Position currentPos, Expected expected) {
         // Если запоминание кандитатов отключено или ошибка возникла ранее, чем нам удавалось
         // продвинуться, то не запоминаем ее. Таким обраом, ошибки рапортуются в позиции, дальше
         // которой провести разбор не удалось ни одним образом.
-        if (silent > 0 || currentPos.compareTo(pos) < 0) return;
+        if (!collect || silent > 0 || currentPos.compareTo(pos) < 0) return;
         // Если ошибка произошла позднее, то значит, мы уже продвинулись вперед,
         // следовательно, ошибка ранее не произошла (мы бы ее не миновали),
         // следовательно, старые данные нужно почистить.
         if (currentPos.compareTo(pos) > 0) {
-            pos = currentPos.clone();
-            candidates.clear();
+            pos.set(currentPos);
+            clear();
+        }
+        final int id = expected.id;
+        if (id < 0) {
+            // Ожидания без номера создаются пользовательским кодом и встречаются редко.
+            if (!candidates.contains(expected)) {
+                candidates.add(expected);
+            }
+            return;
+        }
+        final int word = id >>> 6;
+        if (word >= seen.length) {
+            seen = Arrays.copyOf(seen, Math.max(word + 1, seen.length * 2));
+        }
+        final long bit = 1L << id;
+        if ((seen[word] & bit) == 0) {
+            seen[word] |= bit;
+            candidates.add(expected);
         }
-        candidates.add(expected);
     }
-}
\ No newline at end of file
+}
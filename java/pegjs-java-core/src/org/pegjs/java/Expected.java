@@ -45,6 +45,24 @@ public final class Expected implements Comparable<Expected>, Serializable {
          */
         CUSTOM;
     }
+    /** Номер ожидания {@link #ANY любого символа}. */
+    public static final int ANY_ID = 0;
+    /** Номер ожидания {@link #EOF конца данных}. */
+    public static final int EOF_ID = 1;
+    /** Первый номер, доступный для ожиданий, генерируемых для грамматики. */
+    public static final int FIRST_ID = 2;
+
+    /** Ожидается любой символ, однако был обнаружен конец данных. */
+    public static final Expected ANY = new Expected(ANY_ID, Type.ANY, null, "any character");
+    /** Ожидается конец разбираемых данных, однако имеются еще неразобранные данные. */
+    public static final Expected EOF = new Expected(EOF_ID, Type.EOF, null, "end of input");
+
+    /**
+     * Номер ожидания, плотный в пределах парсера: генератор нумерует константы ожиданий
+     * грамматики подряд, начиная с {@link #FIRST_ID}. По номеру парсер без повторов собирает
+     * ожидания в битовом множестве. Для ожиданий, созданных без номера, равен -1.
+     */
+    public final int id;
     /** Вид ожидаемых данных. */
     public final Type type;
     /** Строковое представление того, что ожидается. */
@@ -53,6 +71,10 @@ public final class Expected implements Comparable<Expected>, Serializable {
     public final String description;
 
     public Expected(Type type, String value, String description) {
+        this(-1, type, value, description);
+    }
+    public Expected(int id, Type type, String value, String description) {
+        this.id = id;
         this.type = type;
         this.value = value;
         this.description = description;
@@ -23,7 +23,13 @@
  */
 package org.pegjs.java;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import org.pegjs.java.exceptions.SyntaxError;
 
 /**
@@ -60,6 +66,15 @@ public interface IBaseParser<R> {
      *         и фактически обнаруженном символе.
      */
     public R parse(CharSequence input) throws SyntaxError;
+    /**
+     * Разбирает указанную входную последовательность так же, как {@link #parse(CharSequence)},
+     * но при неуспехе не выкидывает исключение, а возвращает описание ошибки. Исключение
+     * {@linkplain SyntaxError} при этом не создается, пока к нему не обратятся.
+     *
+     * @param input Разбираемая последовательность.
+     * @return Результат разбора стартового правила грамматики или описание ошибки.
+     */
+    public ParseResult<R> tryParse(CharSequence input);
     /**
      * Пытается разобрать указанную входную последовательность по правилам грамматики
      * парсера. В случае успеха возвращает результат правила, при неуспехе выкидывает
@@ -96,4 +111,72 @@ public interface IBaseParser<R> {
      *         и фактически обнаруженном символе.
      */
     public R parse(byte[] input) throws SyntaxError;
-}
+    /**
+     * Пытается разобрать данные, читаемые из указанного потока, по правилам грамматики
+     * парсера. Поток читается по мере необходимости через окно, поэтому его не нужно
+     * целиком загружать в память. Если парсер сгенерирован в потоковом режиме, данные,
+     * к которым разбор уже не может вернуться, отбрасываются, и объем занимаемой памяти
+     * определяется глубиной возвратов в грамматике, а не размером потока.
+     * <p>
+     * В случае успеха возвращает результат правила, при неуспехе выкидывает исключение
+     * {@linkplain SyntaxError}, содержащее подробную информацию о ожидаемых данных и
+     * фактическом символе. Поток не закрывается.
+     * 
+     * @param input Поток с разбираемыми данными. Для успешного разбора данные должны
+     *        полностью соответствовать грамматике, т.е. если после отработки парсера
+     *        остались неразобранные данные, разбор считается неудачным.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае ошибки чтения потока.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public R parse(Reader input) throws IOException, SyntaxError;
+    /**
+     * Пытается разобрать данные, читаемые из указанного канала и декодируемые в указанной
+     * кодировке, по правилам грамматики парсера. Работает так же, как {@link #parse(Reader)}.
+     * 
+     * @param input Канал с разбираемыми данными. Канал не закрывается.
+     * @param charset Кодировка, в которой записаны данные в канале.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае ошибки чтения канала.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public R parse(ReadableByteChannel input, Charset charset) throws IOException, SyntaxError;
+    /**
+     * Пытается разобрать содержимое указанного файла по правилам грамматики парсера. Файл
+     * отображается в память, поэтому его данные читает кеш страниц операционной системы, а
+     * не куча Java. Каждый байт файла рассматривается как один символ, как и при разборе
+     * {@link ByteBuffer}.
+     * <p>
+     * В случае успеха возвращает результат правила, при неуспехе выкидывает исключение
+     * {@linkplain SyntaxError}, содержащее подробную информацию о ожидаемых данных и
+     * фактическом символе.
+     * 
+     * @param input Путь к разбираемому файлу. Размер файла не должен превышать
+     *        {@link Integer#MAX_VALUE} байт (2 Гб), т.к. смещения в разбираемых данных имеют
+     *        тип `int`.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае, если файл не удалось открыть или отобразить
+     *         в память или он больше 2 Гб.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public R parse(Path input) throws IOException, SyntaxError;
+    /**
+     * Пытается разобрать содержимое файла, открытого указанным каналом, по правилам грамматики
+     * парсера. Работает так же, как {@link #parse(Path)}.
+     * 
+     * @param input Канал открытого на чтение файла. Канал не закрывается.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае, если файл не удалось отобразить в память или
+     *         он больше 2 Гб.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public R parse(FileChannel input) throws IOException, SyntaxError;
+}
\ No newline at end of file
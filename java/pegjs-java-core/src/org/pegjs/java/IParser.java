@@ -23,7 +23,13 @@
  */
 package org.pegjs.java;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import org.pegjs.java.exceptions.NoSuchRuleException;
 import org.pegjs.java.exceptions.SyntaxError;
 
@@ -56,6 +62,17 @@ public interface IParser<R> extends IBaseParser<R> {
      *         и фактически обнаруженном символе.
      */
     public Object parse(CharSequence input, String startRule) throws NoSuchRuleException, SyntaxError;
+    /**
+     * Разбирает указанную входную последовательность так же, как {@link #parse(CharSequence, String)},
+     * но при неуспехе не выкидывает исключение, а возвращает описание ошибки.
+     *
+     * @param input Разбираемая последовательность.
+     * @param startRule Название правила, с которого начать разбор.
+     * @return Результат разбора стартового правила грамматики или описание ошибки.
+     * @throws NoSuchRuleException Кидается в случае, если правила `startRule` не существует
+     *         или разбор с него начать нельзя.
+     */
+    public ParseResult<Object> tryParse(CharSequence input, String startRule) throws NoSuchRuleException;
     /**
      * Пытается разобрать указанную входную последовательность по правилам грамматики
      * парсера. В случае успеха возвращает результат правила, при неуспехе выкидывает
@@ -98,4 +115,68 @@ public interface IParser<R> extends IBaseParser<R> {
      *         и фактически обнаруженном символе.
      */
     public Object parse(byte[] input, String startRule) throws NoSuchRuleException, SyntaxError;
-}
+    /**
+     * Пытается разобрать данные, читаемые из указанного потока, по правилам грамматики
+     * парсера, начиная с указанного правила. Работает так же, как {@link #parse(Reader)}.
+     * 
+     * @param input Поток с разбираемыми данными. Поток не закрывается.
+     * @param startRule Название правила, с которого начать разбор.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае ошибки чтения потока.
+     * @throws NoSuchRuleException Кидается в случае, если правила `startRule` не существует
+     *         или разбор с него начать нельзя.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public Object parse(Reader input, String startRule) throws IOException, NoSuchRuleException, SyntaxError;
+    /**
+     * Пытается разобрать данные, читаемые из указанного канала и декодируемые в указанной
+     * кодировке, по правилам грамматики парсера, начиная с указанного правила. Работает так
+     * же, как {@link #parse(Reader)}.
+     * 
+     * @param input Канал с разбираемыми данными. Канал не закрывается.
+     * @param charset Кодировка, в которой записаны данные в канале.
+     * @param startRule Название правила, с которого начать разбор.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае ошибки чтения канала.
+     * @throws NoSuchRuleException Кидается в случае, если правила `startRule` не существует
+     *         или разбор с него начать нельзя.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public Object parse(ReadableByteChannel input, Charset charset, String startRule) throws IOException, NoSuchRuleException, SyntaxError;
+    /**
+     * Пытается разобрать содержимое указанного файла по правилам грамматики парсера, начиная
+     * с указанного правила. Работает так же, как {@link #parse(Path)}.
+     * 
+     * @param input Путь к разбираемому файлу.
+     * @param startRule Название правила, с которого начать разбор.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае, если файл не удалось открыть или отобразить
+     *         в память или он больше 2 Гб.
+     * @throws NoSuchRuleException Кидается в случае, если правила `startRule` не существует
+     *         или разбор с него начать нельзя.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public Object parse(Path input, String startRule) throws IOException, NoSuchRuleException, SyntaxError;
+    /**
+     * Пытается разобрать содержимое файла, открытого указанным каналом, по правилам грамматики
+     * парсера, начиная с указанного правила. Работает так же, как {@link #parse(Path)}.
+     * 
+     * @param input Канал открытого на чтение файла. Канал не закрывается.
+     * @param startRule Название правила, с которого начать разбор.
+     * @return Результат разбора стартового правила грамматики.
+     * @throws IOException Кидается в случае, если файл не удалось отобразить в память или
+     *         он больше 2 Гб.
+     * @throws NoSuchRuleException Кидается в случае, если правила `startRule` не существует
+     *         или разбор с него начать нельзя.
+     * @throws SyntaxError Кидается в случае, если разбираемые данные не соответствуют
+     *         грамматике парсера. Содержит информацию об ожидаемых элементах и фактически
+     *         обнаруженном символе.
+     */
+    public Object parse(FileChannel input, String startRule) throws IOException, NoSuchRuleException, SyntaxError;
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Индекс начал строк разбираемой последовательности. Позволяет вычислять номер строки
+ * и столбца по смещению, не отслеживая их при поглощении каждого символа. Индекс строится
+ * лениво: разбираемая последовательность просматривается только до самого дальнего смещения,
+ * для которого запрашивались номера строки или столбца.
+ * <p>
+ * Правила перевода строк совпадают с правилами {@link Position#next(char)}: строка
+ * заканчивается символами {@literal '\\r'}, {@literal '\\n'}, {@literal '\\u2028'} и
+ * {@literal '\\u2029'}, при этом {@literal '\\n'}, идущий сразу за одним из остальных
+ * символов, новой строки не начинает, а только сбрасывает номер столбца.
+ *
+ * @author Mingun
+ */
+final class LineIndex implements Serializable {
+    private static final long serialVersionUID = -1409837513349810722L;
+
+    /** Последовательность, для которой строится индекс. */
+    private final CharSequence input;
+    /**
+     * Смещения начал строк, начиная со второй, в порядке возрастания. Если строка начинается
+     * с символа {@literal '\\n'}, завершающего перевод строки {@literal '\\r\\n'}, смещение
+     * хранится в виде {@code ~offset}, т.к. этот символ не увеличивает номер столбца.
+     */
+    private int[] starts = new int[0];
+    /** Количество заполненных элементов массива {@link #starts}. */
+    private int count;
+    /** Смещение первого еще не просмотренного символа последовательности. */
+    private int scanned;
+    /** Является ли последний просмотренный символ переводом строки, отличным от {@literal '\\n'}. */
+    private boolean seenCR;
+    /** Номер строки, в которой находится смещение начала индекса. */
+    private final int line;
+    /** Номер столбца смещения начала индекса минус само смещение. */
+    private final int column;
+
+    LineIndex(CharSequence input) {
+        this(input, 0, 1, 1);
+    }
+    /**
+     * Создает индекс строк, начинающийся с середины последовательности. Данные перед началом
+     * индекса не просматриваются, а номера строк и столбцов в них не вычисляются.
+     * @param offset Смещение начала индекса. Не должно находиться между символами
+     *        {@literal '\r'} и {@literal '\n'}.
+     * @param line Номер строки, в которой находится смещение начала индекса.
+     * @param column Номер столбца смещения начала индекса.
+     */
+    LineIndex(CharSequence input, int offset, int line, int column) {
+        this.input   = input;
+        this.scanned = offset;
+        this.line    = line;
+        this.column  = column - offset;
+    }
+
+    /** Возвращает номер строки (отсчет с 1), в которой находится указанное смещение. */
+    int line(int offset) {
+        return line + find(offset) + 1;
+    }
+    /** Возвращает номер столбца (отсчет с 1), в котором находится указанное смещение. */
+    int column(int offset) {
+        final int i = find(offset);
+        if (i < 0) {
+            return offset + column;
+        }
+        final int start = starts[i];
+        if (start >= 0) {
+            return offset - start + 1;
+        }
+        // Строка начинается с символа '\n', который не увеличивает номер столбца.
+        return Math.max(1, offset - ~start);
+    }
+
+    /**
+     * Ищет последнее начало строки, не превышающее указанное смещение.
+     * @return Индекс в массиве {@link #starts} или {@code -1}, если смещение находится в первой строке.
+     */
+    private int find(int offset) {
+        scan(offset);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int s = starts[mid];
+            if ((s < 0 ? ~s : s) <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+    /**
+     * Просматривает последовательность до указанного смещения (не включая его). Вызывается
+     * перед тем, как данные потоковой последовательности будут отброшены.
+     */
+    void scan(int offset) {
+        final int to = Math.min(offset, input.length());
+        for (; scanned < to; ++scanned) {
+            final char ch = input.charAt(scanned);
+            if (ch == '\n') {
+                if (seenCR) {
+                    // Так как предыдущий символ был '\r', на котором мы уже начали новую строку,
+                    // начинать ее опять не нужно, а нужно лишь пометить ее начало.
+                    starts[count - 1] = ~starts[count - 1];
+                } else {
+                    add(scanned + 1);
+                }
+                seenCR = false;
+            } else
+            if (ch == '\r' || ch == Character.LINE_SEPARATOR || ch == Character.PARAGRAPH_SEPARATOR) {
+                add(scanned + 1);
+                seenCR = true;
+            } else {
+                seenCR = false;
+            }
+        }
+    }
+    /** Регистрирует начало новой строки. */
+    private void add(int start) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(16, count * 2));
+        }
+        starts[count++] = start;
+    }
+}
@@ -49,8 +49,12 @@ public final class Location implements Cloneable, Serializable {
     //<editor-fold defaultstate="collapsed" desc="Публичный интерфейс">
     public Position start() { return start; }
     public Position end()   { return end;   }
+    /**
+     * Возвращает часть разбираемой последовательности, соответствующую диапазону.
+     * @param input Последовательность, при разборе которой получен диапазон.
+     */
     public CharSequence region(CharSequence input) {
-        return input.subSequence(start.offset(), end.offset());
+        return input.subSequence(start.offset, end.offset);
     }
 
     @Override
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Представляет отображенный в память файл или его часть как последовательность символов.
+ * Каждый байт файла рассматривается как один символ. Файл отображается сегментами не более
+ * 1 Гб, чтение данных выполняет кеш страниц операционной системы, а не куча Java.
+ * <p>
+ * Длина последовательности, как и любой {@link CharSequence}, не превышает
+ * {@link Integer#MAX_VALUE}, поэтому файлы большего размера разбираются по частям, {@link
+ * #window окнами}, начинающимися с произвольного смещения в файле (см. {@link RecordParser}).
+ * <p>
+ * Последовательность неизменяема и не зависит от позиции буферов: все обращения к ним
+ * абсолютные, поэтому подпоследовательности и окна разделяют сегменты без копирования.
+ *
+ * @author Mingun
+ */
+final class MappedCharSequence implements CharSequence {
+    /** Двоичный логарифм размера сегмента (1 Гб). */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    /** Отображенные сегменты файла. */
+    private final MappedByteBuffer[] segments;
+    /** Размер файла. */
+    private final long size;
+    /** Смещение начала последовательности от начала файла. */
+    private final long offset;
+    private final int length;
+
+    /**
+     * Отображает файл в память. Последовательность содержит начало файла длиной не более
+     * {@link Integer#MAX_VALUE} символов, остальные данные доступны через {@link #window}.
+     * @param channel Канал открытого на чтение файла. После создания последовательности канал
+     *        можно закрыть, отображение остается действительным.
+     * @throws IOException Если файл не удалось отобразить.
+     */
+    MappedCharSequence(FileChannel channel) throws IOException {
+        this.size = channel.size();
+        this.segments = new MappedByteBuffer[(int)((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; ++i) {
+            final long start = (long)i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT_MASK + 1L));
+        }
+        this.offset = 0;
+        this.length = (int)Math.min(size, Integer.MAX_VALUE);
+    }
+    private MappedCharSequence(MappedByteBuffer[] segments, long size, long offset, int length) {
+        this.segments = segments;
+        this.size   = size;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** Возвращает размер всего файла, который может быть больше длины последовательности. */
+    long size() { return size; }
+    /**
+     * Возвращает часть файла как последовательность символов, не копируя данные.
+     * @param start Смещение начала части от начала файла.
+     * @param length Длина части.
+     */
+    MappedCharSequence window(long start, int length) {
+        if (start < 0 || length < 0 || start > size - length) {
+            throw new IndexOutOfBoundsException("Bounds: [0; "+size+"], start="+start+", length="+length);
+        }
+        return new MappedCharSequence(segments, size, start, length);
+    }
+
+    @Override
+    public int length() { return length; }
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Bounds: [0; "+length+"), index="+index);
+        }
+        final long i = offset + index;
+        return (char)(segments[(int)(i >>> SEGMENT_SHIFT)].get((int)i & SEGMENT_MASK) & 0xFF);
+    }
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Bounds: [0; "+length+"], start="+start+", end="+end);
+        }
+        return new MappedCharSequence(segments, size, offset + start, end - start);
+    }
+    @Override
+    public String toString() {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
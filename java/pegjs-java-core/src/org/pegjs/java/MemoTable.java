@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Таблица запомненных результатов разбора правил для packrat-режима разбора.
+ * Ключом является пара (номер правила, смещение начала разбора), значением -- результат
+ * разбора правила (возможно, {@link IParser#FAILED}), позиция, в которой разбор закончился,
+ * и граница просмотренных при разборе данных, позволяющая повторно использовать результаты
+ * после изменения разбираемых данных (см. {@link #edit}).
+ * <p>
+ * Таблица реализована как хеш-таблица с открытой адресацией на параллельных массивах,
+ * поэтому ни ключи, ни записи не требуют создания отдельных объектов.
+ *
+ * @author Mingun
+ */
+final class MemoTable implements Serializable {
+    private static final long serialVersionUID = 2408345513512290175L;
+    /** Начальная емкость таблицы. Всегда степень двойки. */
+    private static final int INITIAL_CAPACITY = 256;
+    /** Маркер свободной ячейки в массиве {@link #rules}. */
+    private static final int EMPTY = -1;
+
+    /** Номера правил, являющиеся первой частью ключа. */
+    private int[] rules;
+    /** Смещения начала разбора правила, являющиеся второй частью ключа. */
+    private int[] offsets;
+    /** Результаты разбора правил. */
+    private Object[] results;
+    /** Смещения, на которых закончился разбор правил. */
+    private int[] endOffsets;
+    /**
+     * Позиции, в которых закончился разбор правил. Не заполняются в режиме ленивого
+     * отслеживания строк, т.к. в нем позиция однозначно определяется смещением.
+     */
+    private Position[] ends;
+    /**
+     * Смещения (не включая), до которых правила просматривали данные при разборе. Не меньше
+     * смещения окончания разбора, т.к. учитывают и символы, на которых сопоставление не удалось.
+     */
+    private int[] reaches;
+    /** Количество занятых ячеек таблицы. */
+    private int size;
+
+    MemoTable() { allocate(INITIAL_CAPACITY); }
+
+    /**
+     * Ищет в таблице результат разбора правила в указанной позиции.
+     * @param rule Номер правила.
+     * @param offset Смещение, с которого начинался разбор правила.
+     * @return Индекс записи в таблице или {@code -1}, если правило в этой позиции еще не разбиралось.
+     */
+    int find(int rule, int offset) {
+        final int mask = rules.length - 1;
+        for (int i = hash(rule, offset) & mask;; i = (i + 1) & mask) {
+            final int r = rules[i];
+            if (r == EMPTY) return -1;
+            if (r == rule && offsets[i] == offset) return i;
+        }
+    }
+    /** Возвращает результат разбора правила из записи с указанным индексом. */
+    Object result(int index) { return results[index]; }
+    /** Возвращает смещение окончания разбора правила из записи с указанным индексом. */
+    int endOffset(int index) { return endOffsets[index]; }
+    /** Возвращает позицию окончания разбора правила из записи с указанным индексом. */
+    Position end(int index) { return ends[index]; }
+    /** Возвращает границу просмотренных данных из записи с указанным индексом. */
+    int reach(int index) { return reaches[index]; }
+
+    /**
+     * Запоминает результат разбора правила. Если запись с таким ключом уже существует,
+     * она перезаписывается.
+     * @param rule Номер правила.
+     * @param offset Смещение, с которого начинался разбор правила.
+     * @param result Результат разбора правила.
+     * @param endOffset Смещение, на котором закончился разбор правила.
+     * @param end Позиция, в которой закончился разбор правила, или {@code null}. Таблица
+     *        сохраняет ссылку на объект, поэтому он не должен в дальнейшем изменяться.
+     * @param reach Смещение (не включая), до которого правило просматривало данные.
+     */
+    void put(int rule, int offset, Object result, int endOffset, Position end, int reach) {
+        // Поддерживаем коэффициент заполнения не выше 1/2, чтобы цепочки проб оставались короткими.
+        if (2 * (size + 1) > rules.length) {
+            rehash();
+        }
+        final int mask = rules.length - 1;
+        int i = hash(rule, offset) & mask;
+        while (rules[i] != EMPTY && (rules[i] != rule || offsets[i] != offset)) {
+            i = (i + 1) & mask;
+        }
+        if (rules[i] == EMPTY) {
+            ++size;
+        }
+        rules[i]      = rule;
+        offsets[i]    = offset;
+        results[i]    = result;
+        endOffsets[i] = endOffset;
+        ends[i]       = end;
+        reaches[i]    = reach;
+    }
+    /** Удаляет из таблицы все записи, сохраняя выделенную под нее память. */
+    void clear() {
+        if (size == 0) return;
+        Arrays.fill(rules, EMPTY);
+        Arrays.fill(results, null);
+        Arrays.fill(ends, null);
+        size = 0;
+    }
+
+    /**
+     * Удаляет из таблицы записи о разборе правил, начавшемся до указанного смещения. Оставшиеся
+     * записи переносятся в таблицу минимальной достаточной емкости.
+     * @param offset Смещение, к которому разбор больше никогда не вернется.
+     */
+    void discard(int offset) {
+        if (size == 0) return;
+
+        final int[] oldRules = rules;
+        final int[] oldOffsets = offsets;
+        final Object[] oldResults = results;
+        final int[] oldEndOffsets = endOffsets;
+        final Position[] oldEnds = ends;
+        final int[] oldReaches = reaches;
+
+        int kept = 0;
+        for (int i = 0; i < oldRules.length; ++i) {
+            if (oldRules[i] != EMPTY && oldOffsets[i] >= offset) {
+                ++kept;
+            }
+        }
+        if (kept == size) return;
+
+        int capacity = INITIAL_CAPACITY;
+        while (2 * kept > capacity) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldRules.length; ++i) {
+            if (oldRules[i] != EMPTY && oldOffsets[i] >= offset) {
+                put(oldRules[i], oldOffsets[i], oldResults[i], oldEndOffsets[i], oldEnds[i], oldReaches[i]);
+            }
+        }
+    }
+
+    /**
+     * Приводит таблицу в соответствие с измененными разбираемыми данными. Записи о разборе,
+     * просматривавшем данные только до места изменения, остаются как есть, записи о разборе,
+     * начавшемся после измененного участка, сдвигаются на разницу длин, остальные удаляются.
+     * @param offset Смещение начала измененного участка.
+     * @param removed Количество удаленных с этого смещения символов.
+     * @param delta Разница между количеством вставленных и удаленных символов.
+     * @param shift Если `false`, записи после измененного участка также удаляются. Требуется,
+     *        если в записях хранятся позиции с номерами строк и столбцов, которые нельзя сдвинуть.
+     */
+    void edit(int offset, int removed, int delta, boolean shift) {
+        if (size == 0) return;
+
+        final int[] oldRules = rules;
+        final int[] oldOffsets = offsets;
+        final Object[] oldResults = results;
+        final int[] oldEndOffsets = endOffsets;
+        final Position[] oldEnds = ends;
+        final int[] oldReaches = reaches;
+
+        final int end = offset + removed;
+        allocate(oldRules.length);
+        size = 0;
+        for (int i = 0; i < oldRules.length; ++i) {
+            if (oldRules[i] == EMPTY) continue;
+
+            if (oldReaches[i] <= offset) {
+                put(oldRules[i], oldOffsets[i], oldResults[i], oldEndOffsets[i], oldEnds[i], oldReaches[i]);
+            } else
+            if (shift && oldOffsets[i] >= end) {
+                put(oldRules[i], oldOffsets[i] + delta, oldResults[i], oldEndOffsets[i] + delta, null, oldReaches[i] + delta);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        rules      = new int[capacity];
+        offsets    = new int[capacity];
+        results    = new Object[capacity];
+        endOffsets = new int[capacity];
+        ends       = new Position[capacity];
+        reaches    = new int[capacity];
+        Arrays.fill(rules, EMPTY);
+    }
+    private void rehash() {
+        final int[] oldRules = rules;
+        final int[] oldOffsets = offsets;
+        final Object[] oldResults = results;
+        final int[] oldEndOffsets = endOffsets;
+        final Position[] oldEnds = ends;
+        final int[] oldReaches = reaches;
+
+        allocate(oldRules.length * 2);
+        size = 0;
+        for (int i = 0; i < oldRules.length; ++i) {
+            if (oldRules[i] != EMPTY) {
+                put(oldRules[i], oldOffsets[i], oldResults[i], oldEndOffsets[i], oldEnds[i], oldReaches[i]);
+            }
+        }
+    }
+    private static int hash(int rule, int offset) {
+        final int h = offset * 0x9E3779B9 + rule * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+/**
+ * Получатель событий разбора от парсеров, сгенерированных в режиме событий. Вместо построения
+ * дерева результатов такой парсер сообщает о начале и конце разбора правил и о сопоставленных
+ * токенах, поэтому объем занимаемой памяти не зависит от размера разбираемых данных.
+ * <p>
+ * События разобранных альтернатив, от которых разбор впоследствии отказался, слушателю не
+ * передаются: парсер накапливает события и передает их только после успешного разбора или
+ * {@link State#commit() фиксации} разбора правилом с аннотацией {@code @Cut}. Поэтому слушатель
+ * видит только итоговый вывод разбираемых данных, а при синтаксической ошибке -- события до
+ * последней фиксации.
+ * <p>
+ * Смещения в событиях отсчитываются от начала разбираемых данных, в режиме разбора UTF-8 --
+ * в байтах.
+ *
+ * @see State#listen(ParseListener)
+ * @author Mingun
+ */
+public interface ParseListener {
+    /**
+     * Вызывается в начале успешно разобранного правила.
+     * @param rule Имя правила в грамматике.
+     * @param offset Смещение, с которого начинается текст правила.
+     */
+    public void enterRule(String rule, int offset);
+    /**
+     * Вызывается в конце успешно разобранного правила.
+     * @param rule Имя правила в грамматике.
+     * @param offset Смещение (не включая), на котором заканчивается текст правила.
+     */
+    public void exitRule(String rule, int offset);
+    /**
+     * Вызывается для каждого сопоставленного литерала, класса символов, любого символа
+     * и текстового (<code>$</code>) выражения. Токены внутри текстового выражения, в том
+     * числе события правил, заменяются одним токеном для всего выражения.
+     * @param input Разбираемая последовательность. При разборе потоков содержит текст токена
+     *        только во время вызова и только для событий, переданных при фиксации разбора:
+     *        к концу разбора данные без фиксаций могут быть уже отброшены.
+     * @param start Смещение начала токена.
+     * @param end Смещение (не включая) конца токена.
+     */
+    public void token(CharSequence input, int start, int end);
+}
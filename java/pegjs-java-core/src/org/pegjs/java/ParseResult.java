@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+import java.util.SortedSet;
+import org.pegjs.java.exceptions.SyntaxError;
+
+/**
+ * Результат разбора, не выбрасывающего исключений: либо значение стартового правила, либо
+ * описание синтаксической ошибки, либо, для результатов {@link ParserPool#parseAll(Iterable,
+ * java.util.concurrent.Executor) пакетного разбора}, другое исключение, выброшенное при разборе.
+ * Исключение {@link SyntaxError} для неудачного разбора
+ * создается без заполнения стека вызовов, а его сообщение и множество ожидаемых элементов
+ * формируются только при обращении к ним, поэтому неудачный разбор обходится дешево.
+ *
+ * @param <R> Тип результата разбора.
+ * @author Mingun
+ */
+public final class ParseResult<R> {
+    /** Признак успешного разбора. */
+    private final boolean success;
+    /** Результат разбора, если он успешен. */
+    private final R value;
+    /** Ошибка разбора или {@code null}, если разбор успешен или прерван другим исключением. */
+    private final SyntaxError error;
+    /** Исключение, отличное от {@link SyntaxError}, прервавшее разбор, или {@code null}. */
+    private final Exception exception;
+
+    private ParseResult(boolean success, R value, SyntaxError error, Exception exception) {
+        this.success   = success;
+        this.value     = value;
+        this.error     = error;
+        this.exception = exception;
+    }
+    /**
+     * Создает результат успешного разбора.
+     * @param value Результат разбора стартового правила.
+     */
+    public static <R> ParseResult<R> success(R value) {
+        return new ParseResult<>(true, value, null, null);
+    }
+    /**
+     * Создает результат неудачного разбора из уже сформированной ошибки, например, выброшенной
+     * действием грамматики.
+     * @param error Ошибка разбора.
+     */
+    public static <R> ParseResult<R> failure(SyntaxError error) {
+        return new ParseResult<>(false, null, error, null);
+    }
+    /**
+     * Создает результат разбора, прерванного исключением, отличным от {@link SyntaxError},
+     * например, ошибкой в коде действия.
+     * @param exception Исключение, выброшенное при разборе.
+     */
+    static <R> ParseResult<R> failure(Exception exception) {
+        return exception instanceof SyntaxError
+            ? ParseResult.<R>failure((SyntaxError)exception)
+            : new ParseResult<R>(false, null, null, exception);
+    }
+    /**
+     * Создает результат неудачного разбора с ошибкой без стека вызовов.
+     * @param candidates Список ожидаемых элементов, возможно, с повторами.
+     * @param location Позиция, в которой обнаружена ошибка.
+     * @param found Встретившийся символ или {@code null} в конце данных.
+     */
+    static <R> ParseResult<R> failure(List<Expected> candidates, Location location, Character found) {
+        return new ParseResult<>(false, null, new SyntaxError(null, candidates, location, found, false), null);
+    }
+
+    /** Возвращает `true`, если разбор успешен. */
+    public boolean isSuccess() { return success; }
+    /**
+     * Возвращает результат успешного разбора.
+     * @throws SyntaxError Если разбор был неудачен.
+     * @throws RuntimeException Исключение, прервавшее разбор. Проверяемые исключения
+     *         оборачиваются в {@link UndeclaredThrowableException}.
+     */
+    public R value() throws SyntaxError {
+        if (exception instanceof RuntimeException) {
+            throw (RuntimeException)exception;
+        }
+        if (exception != null) {
+            throw new UndeclaredThrowableException(exception);
+        }
+        if (!success) {
+            throw error();
+        }
+        return value;
+    }
+    /**
+     * Возвращает ошибку неудачного разбора или {@code null}, если разбор успешен или прерван
+     * другим исключением.
+     */
+    public SyntaxError error() { return error; }
+    /**
+     * Возвращает исключение, отличное от {@link SyntaxError}, прервавшее разбор, или {@code null},
+     * если разбор завершился успешно или синтаксической ошибкой.
+     */
+    public Exception exception() { return exception; }
+    /** Возвращает позицию ошибки или {@code null}, если синтаксической ошибки нет. */
+    public Location location() { return error == null ? null : error.location; }
+    /**
+     * Возвращает элементы, ожидаемые в позиции ошибки, или {@code null}, если синтаксической
+     * ошибки нет. Если ошибка сформирована действием с собственным сообщением, множество пусто.
+     */
+    public SortedSet<Expected> expected() { return error == null ? null : error.candidates(); }
+    /** Возвращает встретившийся в позиции ошибки символ или {@code null}, если достигнут конец данных. */
+    public Character found() { return error == null ? null : error.found; }
+
+    @Override
+    public String toString() {
+        if (success) {
+            return "Success(" + value + ")";
+        }
+        return "Failure(" + (error != null ? error.getMessage() : exception) + ")";
+    }
+}
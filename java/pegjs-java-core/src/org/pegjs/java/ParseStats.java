@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Статистика разбора по правилам грамматики, собираемая парсерами, сгенерированными в режиме
+ * профилирования. Для каждого правила подсчитываются количество вызовов, успешных и неудачных
+ * разборов, поглощенных символов, символов, отданных при откатах внутри правила, и, если парсер
+ * сгенерирован с измерением времени, время разбора правила вместе с вызванными им правилами.
+ * <p>
+ * Статистика общая для всех экземпляров класса парсера (см. {@link State#stats()}). Каждый
+ * экземпляр подсчитывает вызовы в собственных счетчиках без синхронизации и прибавляет их к
+ * общей статистике атомарными операциями по окончании каждого разбора, поэтому статистика
+ * отражает только завершенные разборы, а парсеры разных потоков не конкурируют за счетчики во
+ * время разбора.
+ * <p>
+ * В режиме разбора UTF-8 символы считаются в байтах. При {@link State#twoPassErrors()
+ * двухпроходном разборе} учитываются оба прохода неудачного разбора.
+ *
+ * @author Mingun
+ */
+public final class ParseStats implements ParseStatsMXBean {
+    static final int INVOCATIONS = 0;
+    static final int SUCCESSES   = 1;
+    static final int CONSUMED    = 2;
+    static final int BACKTRACKED = 3;
+    static final int NANOS       = 4;
+    /** Количество счетчиков каждого правила. */
+    static final int FIELDS      = 5;
+
+    private final String name;
+    private final String[] rules;
+    /** Счетчики правил, по {@link #FIELDS} подряд для каждого правила. */
+    private final AtomicLongArray totals;
+
+    /**
+     * @param name Имя статистики, обычно полное имя класса парсера.
+     * @param rules Имена правил грамматики в порядке их номеров.
+     */
+    public ParseStats(String name, String... rules) {
+        this.name   = name;
+        this.rules  = rules.clone();
+        this.totals = new AtomicLongArray(rules.length * FIELDS);
+    }
+
+    /** Возвращает имя статистики. */
+    public String name() {
+        return name;
+    }
+    /** Возвращает имена правил грамматики в порядке их номеров. */
+    public List<String> rules() {
+        return Collections.unmodifiableList(Arrays.asList(rules));
+    }
+    /**
+     * Возвращает номер правила по его имени.
+     * @param rule Имя правила.
+     * @return Номер правила или {@code -1}, если в грамматике нет такого правила.
+     */
+    public int indexOf(String rule) {
+        return Arrays.asList(rules).indexOf(rule);
+    }
+    /** Возвращает количество вызовов правила с указанным номером. */
+    public long invocations(int rule) {
+        return get(rule, INVOCATIONS);
+    }
+    /** Возвращает количество успешных разборов правила с указанным номером. */
+    public long successes(int rule) {
+        return get(rule, SUCCESSES);
+    }
+    /** Возвращает количество неудачных разборов правила с указанным номером. */
+    public long failures(int rule) {
+        return get(rule, INVOCATIONS) - get(rule, SUCCESSES);
+    }
+    /** Возвращает количество символов, поглощенных успешными разборами правила. */
+    public long consumed(int rule) {
+        return get(rule, CONSUMED);
+    }
+    /**
+     * Возвращает количество символов, разобранных в правиле и отданных при откатах к сохраненным
+     * в нем позициям: при неудаче последовательности или альтернативы выбора и после простых
+     * предикатов. Символы, отданные при откате вызвавшего правила, учитываются в нем.
+     */
+    public long backtracked(int rule) {
+        return get(rule, BACKTRACKED);
+    }
+    /**
+     * Возвращает время разбора правила вместе с вызванными им правилами в наносекундах или 0,
+     * если парсер сгенерирован без измерения времени.
+     */
+    public long nanos(int rule) {
+        return get(rule, NANOS);
+    }
+
+    /**
+     * Регистрирует статистику в платформенном сервере MBean под именем
+     * {@code org.pegjs.java:type=ParseStats,name=<имя статистики>}.
+     * @return Имя, под которым статистика зарегистрирована.
+     * @throws JMException Если статистика с таким именем уже зарегистрирована.
+     */
+    public ObjectName register() throws JMException {
+        final ObjectName objectName = objectName();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+    /**
+     * Отменяет регистрацию статистики, выполненную {@link #register()}.
+     * @throws JMException Если статистика не зарегистрирована.
+     */
+    public void unregister() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+    }
+    private ObjectName objectName() throws JMException {
+        return new ObjectName("org.pegjs.java:type=ParseStats,name=" + ObjectName.quote(name));
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="ParseStatsMXBean">
+    @Override
+    public String getName() {
+        return name;
+    }
+    @Override
+    public String[] getRules() {
+        return rules.clone();
+    }
+    @Override
+    public long[] getInvocations() {
+        return column(INVOCATIONS);
+    }
+    @Override
+    public long[] getSuccesses() {
+        return column(SUCCESSES);
+    }
+    @Override
+    public long[] getFailures() {
+        final long[] result = new long[rules.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = failures(i);
+        }
+        return result;
+    }
+    @Override
+    public long[] getConsumed() {
+        return column(CONSUMED);
+    }
+    @Override
+    public long[] getBacktracked() {
+        return column(BACKTRACKED);
+    }
+    @Override
+    public long[] getNanos() {
+        return column(NANOS);
+    }
+    @Override
+    public String getReport() {
+        return toString();
+    }
+    @Override
+    public void reset() {
+        for (int i = 0; i < totals.length(); ++i) {
+            totals.set(i, 0);
+        }
+    }
+    //</editor-fold>
+
+    /**
+     * Прибавляет счетчики экземпляра парсера к общей статистике и обнуляет их.
+     * @param counters Счетчики правил, расположенные так же, как в {@link #totals}.
+     */
+    void add(long[] counters) {
+        for (int i = 0; i < counters.length; ++i) {
+            if (counters[i] != 0) {
+                totals.addAndGet(i, counters[i]);
+                counters[i] = 0;
+            }
+        }
+    }
+    /** Возвращает количество счетчиков, необходимое для {@link #add}. */
+    int size() {
+        return totals.length();
+    }
+
+    /**
+     * Возвращает таблицу со статистикой вызванных правил, по строке на правило в порядке
+     * их номеров.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(name).append('\n');
+        sb.append(String.format("%-24s %12s %12s %12s %14s %14s %14s%n",
+            "rule", "invocations", "successes", "failures", "consumed", "backtracked", "nanos"
+        ));
+        for (int i = 0; i < rules.length; ++i) {
+            if (invocations(i) == 0) continue;
+            sb.append(String.format("%-24s %12d %12d %12d %14d %14d %14d%n",
+                rules[i], invocations(i), successes(i), failures(i), consumed(i), backtracked(i), nanos(i)
+            ));
+        }
+        return sb.toString();
+    }
+
+    private long get(int rule, int field) {
+        return totals.get(rule * FIELDS + field);
+    }
+    private long[] column(int field) {
+        final long[] result = new long[rules.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = get(i, field);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+/**
+ * Интерфейс управления для публикации {@link ParseStats статистики разбора} через JMX
+ * (см. {@link ParseStats#register()}). Элементы массивов соответствуют правилам из
+ * {@link #getRules()}.
+ *
+ * @author Mingun
+ */
+public interface ParseStatsMXBean {
+    /** Имя статистики, обычно полное имя класса парсера. */
+    public String getName();
+    /** Имена правил грамматики в порядке их следования. */
+    public String[] getRules();
+    /** Количество вызовов каждого правила. */
+    public long[] getInvocations();
+    /** Количество успешных разборов каждого правила. */
+    public long[] getSuccesses();
+    /** Количество неудачных разборов каждого правила. */
+    public long[] getFailures();
+    /** Количество символов, поглощенных успешными разборами каждого правила. */
+    public long[] getConsumed();
+    /** Количество символов, разобранных в каждом правиле и отданных при откате. */
+    public long[] getBacktracked();
+    /** Время разбора каждого правила в наносекундах, если оно измеряется. */
+    public long[] getNanos();
+    /** Отчет о статистике в виде текстовой таблицы. */
+    public String getReport();
+    /** Обнуляет все счетчики. */
+    public void reset();
+}
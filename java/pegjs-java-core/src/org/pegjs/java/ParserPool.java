@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.pegjs.java.exceptions.NoSuchRuleException;
+import org.pegjs.java.exceptions.SyntaxError;
+
+/**
+ * Потокобезопасный фасад для парсеров. Экземпляр сгенерированного парсера хранит состояние
+ * разбора и не может использоваться несколькими потоками одновременно; пул выдает каждому
+ * разбору свой экземпляр и после разбора {@link State#reset() сбрасывает} его и сохраняет для
+ * повторного использования. Поэтому при частом разборе небольших сообщений парсеры, списки
+ * ожиданий и таблицы запоминания не создаются заново.
+ * <p>
+ * Свободные парсеры хранятся в массиве фиксированного размера, захват и возврат выполняются
+ * атомарными операциями без блокировок и без выделения памяти. Если свободных парсеров нет,
+ * создается новый; если при возврате массив заполнен, парсер просто отбрасывается. Пул не
+ * привязывает парсеры к потокам, поэтому подходит и для виртуальных потоков.
+ * <p>
+ * Для разбора множества небольших независимых последовательностей предназначены методы
+ * {@link #parseAll(Iterable, Executor) parseAll}, в которых каждый исполнитель захватывает
+ * один парсер на все разбираемые им последовательности.
+ *
+ * @param <R> Тип результата стартового правила по умолчанию.
+ * @param <P> Тип сгенерированного парсера.
+ * @author Mingun
+ */
+public final class ParserPool<R, P extends State & IParser<R>> implements IParser<R> {
+    /** Создает новые экземпляры парсера, когда в пуле нет свободных. */
+    public interface Factory<P> {
+        /** Возвращает новый экземпляр парсера. */
+        P create();
+    }
+
+    private final Factory<? extends P> factory;
+    /** Свободные парсеры, {@code null} в незанятых ячейках. */
+    private final AtomicReferenceArray<P> idle;
+
+    /**
+     * Создает пул, хранящий до удвоенного количества процессоров свободных парсеров.
+     * @param factory Фабрика новых экземпляров парсера.
+     */
+    public ParserPool(Factory<? extends P> factory) {
+        this(factory, 2 * Runtime.getRuntime().availableProcessors());
+    }
+    /**
+     * @param factory Фабрика новых экземпляров парсера.
+     * @param capacity Максимальное количество хранимых свободных парсеров.
+     */
+    public ParserPool(Factory<? extends P> factory, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("'capacity' must be > 0: "+capacity);
+        }
+        this.factory = factory;
+        this.idle = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Захватывает свободный парсер из пула или создает новый. Захваченный парсер должен
+     * быть возвращен в пул вызовом {@link #release}.
+     * @return Парсер, используемый только вызывающим кодом до его возврата в пул.
+     */
+    public P acquire() {
+        final int n = idle.length();
+        final int start = hint(n);
+        for (int i = 0; i < n; ++i) {
+            final int k = (start + i) % n;
+            final P p = idle.get(k);
+            if (p != null && idle.compareAndSet(k, p, null)) {
+                return p;
+            }
+        }
+        return factory.create();
+    }
+    /**
+     * Сбрасывает парсер и возвращает его в пул. После вызова парсер не должен использоваться
+     * вызывающим кодом.
+     * @param parser Парсер, полученный ранее вызовом {@link #acquire}.
+     */
+    public void release(P parser) {
+        parser.reset();
+        final int n = idle.length();
+        final int start = hint(n);
+        for (int i = 0; i < n; ++i) {
+            final int k = (start + i) % n;
+            if (idle.get(k) == null && idle.compareAndSet(k, null, parser)) {
+                return;
+            }
+        }
+    }
+    /**
+     * Разбирает последовательности правилом по умолчанию, распределяя их между задачами,
+     * выполняемыми указанным исполнителем, и вызывающим потоком. Каждая задача захватывает из
+     * пула один парсер и разбирает им последовательности, пока они не закончатся, поэтому
+     * подходит как для пулов фиксированного размера, так и для исполнителей, создающих по
+     * виртуальному потоку на задачу. Если исполнитель отказывается принимать задачи, все
+     * последовательности разбирает вызывающий поток.
+     * <p>
+     * Синтаксические ошибки и другие исключения, выброшенные при разборе последовательности
+     * (например, ошибкой в действии), не выбрасываются, а возвращаются в виде неудачного
+     * результата этой последовательности (см. {@link ParseResult#exception()}), поэтому не
+     * мешают получить результаты остальных. Выбрасываются только ошибки {@link Error}, после
+     * которых продолжать работу нельзя.
+     *
+     * @param inputs Разбираемые последовательности.
+     * @param executor Исполнитель задач разбора.
+     * @return Результаты разбора в порядке следования последовательностей.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ParseResult<R>> parseAll(Iterable<? extends CharSequence> inputs, Executor executor) {
+        return (List<ParseResult<R>>)(List<?>)batch(inputs, null, executor);
+    }
+    /**
+     * Разбирает последовательности указанным стартовым правилом так же, как
+     * {@link #parseAll(Iterable, Executor)}.
+     *
+     * @param inputs Разбираемые последовательности.
+     * @param startRule Название правила, с которого начинать разбор.
+     * @param executor Исполнитель задач разбора.
+     * @return Результаты разбора в порядке следования последовательностей.
+     * @throws NoSuchRuleException Если правила `startRule` не существует или разбор с него
+     *         начать нельзя.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ParseResult<Object>> parseAll(Iterable<? extends CharSequence> inputs, String startRule, Executor executor) throws NoSuchRuleException {
+        return (List<ParseResult<Object>>)(List<?>)batch(inputs, startRule, executor);
+    }
+    private List<ParseResult<?>> batch(Iterable<? extends CharSequence> inputs, final String startRule, Executor executor) {
+        final List<CharSequence> items = new ArrayList<>();
+        for (final CharSequence input : inputs) {
+            items.add(input);
+        }
+        final ParseResult<?>[] results = new ParseResult<?>[items.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(items.size());
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                if (next.get() >= results.length) return;
+
+                final P p = acquire();
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < results.length) {
+                        try {
+                            results[i] = startRule == null
+                                ? p.tryParse(items.get(i))
+                                : p.tryParse(items.get(i), startRule);
+                        } catch (NoSuchRuleException ex) {
+                            thrown.compareAndSet(null, ex);
+                        } catch (Exception ex) {
+                            results[i] = ParseResult.failure(ex);
+                        } catch (Throwable ex) {
+                            thrown.compareAndSet(null, ex);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                } finally {
+                    release(p);
+                }
+            }
+        };
+        // Разбор ограничен процессором, поэтому больше задач, чем процессоров, не ускорит его.
+        final int workers = Math.min(results.length, Runtime.getRuntime().availableProcessors()) - 1;
+        try {
+            for (int i = 0; i < workers; ++i) {
+                executor.execute(worker);
+            }
+        } catch (RejectedExecutionException ex) {
+            // Оставшиеся последовательности разберет вызывающий поток.
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final Throwable ex = thrown.get();
+        if (ex instanceof RuntimeException) throw (RuntimeException)ex;
+        if (ex instanceof Error) throw (Error)ex;
+        return Arrays.asList(results);
+    }
+    /** Начинает поиск с ячейки, зависящей от потока, чтобы потоки реже конкурировали за ячейки. */
+    private static int hint(int n) {
+        return (int)(Thread.currentThread().getId() % n);
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="IParser">
+    @Override
+    public R parse(CharSequence input) throws SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(CharSequence input, String startRule) throws NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public ParseResult<R> tryParse(CharSequence input) {
+        final P p = acquire();
+        try {
+            return p.tryParse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public ParseResult<Object> tryParse(CharSequence input, String startRule) throws NoSuchRuleException {
+        final P p = acquire();
+        try {
+            return p.tryParse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(ByteBuffer input) throws SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(ByteBuffer input, String startRule) throws NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(byte[] input) throws SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(byte[] input, String startRule) throws NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(Reader input) throws IOException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(Reader input, String startRule) throws IOException, NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(ReadableByteChannel input, Charset charset) throws IOException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, charset);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(ReadableByteChannel input, Charset charset, String startRule) throws IOException, NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, charset, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(Path input) throws IOException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(Path input, String startRule) throws IOException, NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public R parse(FileChannel input) throws IOException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input);
+        } finally {
+            release(p);
+        }
+    }
+    @Override
+    public Object parse(FileChannel input, String startRule) throws IOException, NoSuchRuleException, SyntaxError {
+        final P p = acquire();
+        try {
+            return p.parse(input, startRule);
+        } finally {
+            release(p);
+        }
+    }
+    //</editor-fold>
+}
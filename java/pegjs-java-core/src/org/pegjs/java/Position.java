@@ -23,6 +23,7 @@
  */
 package org.pegjs.java;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 /**
@@ -36,36 +37,73 @@ import java.io.Serializable;
 public final class Position implements Cloneable, Comparable<Position>, Serializable {
     private static final long serialVersionUID = -6351749547057584171L;
 
-    /** Смещение в символах от начала разбираемых данных (нумерация с 0). */
+    /** Смещение в символах от начала разбираемой последовательности (нумерация с 0). */
     int offset = 0;
+    /**
+     * Смещение начала разбираемой последовательности от начала данных. Отлично от 0, только
+     * если последовательность -- окно отображенного в память файла, больше 2 Гб (см.
+     * {@link RecordParser#parse(java.nio.channels.FileChannel)}).
+     */
+    long base = 0;
     private int line = 1;
     private int column = 1;
     private boolean seenCR = false;
+    /**
+     * Индекс строк разбираемых данных. Если задан, то номера строки и столбца не отслеживаются
+     * при поглощении символов, а вычисляются по смещению только при запросе.
+     */
+    private transient LineIndex lines;
+
+    public Position() {}
+    Position(LineIndex lines, long base, int offset) {
+        this.lines  = lines;
+        this.base   = base;
+        this.offset = offset;
+    }
+    /** Возвращает позицию в начало разбираемых данных, чтобы использовать ее для нового разбора. */
+    void reset(LineIndex lines) {
+        this.offset = 0;
+        this.base   = 0;
+        this.line   = 1;
+        this.column = 1;
+        this.seenCR = false;
+        this.lines  = lines;
+    }
+    /** Копирует в эту позицию указанную, не создавая новых объектов. */
+    void set(Position other) {
+        this.offset = other.offset;
+        this.base   = other.base;
+        this.line   = other.line;
+        this.column = other.column;
+        this.seenCR = other.seenCR;
+        this.lines  = other.lines;
+    }
 
     //<editor-fold defaultstate="collapsed" desc="Публичный интерфейс">
     /**
-     * Возвращает текущее смещение в символах (отсчет с 1) от начала разбираемого
-     * входа.
+     * Возвращает текущее смещение в символах (отсчет с 0) от начала разбираемого
+     * входа. Смещения в файлах, отображенных в память, могут превышать 2 Гб.
      */
-    public int offset() { return offset; }
+    public long offset() { return base + offset; }
     /**
      * Возвращает текущий номер строки (отсчет с 1) в разбираемом входе.
      * Номер строки увеличивается каждый раз при встрече последовательности
      * символов или одного символа {@literal '\\r\\n'}, {@literal '\\r'} или
      * {@literal '\\n'}.
      */
-    public int line() { return line; }
+    public int line() { return lines != null ? lines.line(offset) : line; }
     /**
      * Возвращает текущий номер столбца (отсчет с 1) в разбираемом входе.
      * Номер столбца увеличивается с каждым символом и сбрасывается на 1 при
      * встрече последовательности символов или одного символа {@literal '\\r\\n'},
      * {@literal '\\r'} или {@literal '\\n'}.
      */
-    public int column() { return column; }
+    public int column() { return lines != null ? lines.column(offset) : column; }
     //</editor-fold>
 
     protected void next(char ch) {
         ++offset;
+        if (lines != null) return;
         if (ch == '\n') {
             // Так как предыдущий символ был '\\r', на котором мы уже увеличили
             // номер строки, опять его увеличивать не нужно.
@@ -85,12 +123,28 @@ public final class Position implements Cloneable, Comparable<Position>, Serializ
         }
     }
     protected void next(CharSequence input, int to) {
+        if (lines != null) {
+            offset = to;
+            return;
+        }
         for (int i = offset; i < to; ++i) {
             final char ch = input.charAt(i);
             next(ch);
         }
     }
 
+    /**
+     * Возвращает копию позиции, смещение которой отсчитывается от нее самой, для разбора
+     * данных, начинающихся в ней, как отдельной последовательности.
+     */
+    Position rebase() {
+        final Position p = clone();
+        p.base  += offset;
+        p.offset = 0;
+        return p;
+    }
+
+    /** Сравнивает позиции в одной разбираемой последовательности. */
     @Override
     public int compareTo(Position o) {
         // Объект всегда больше, чем null.
@@ -108,6 +162,23 @@ public final class Position implements Cloneable, Comparable<Position>, Serializ
 
     @Override
     public String toString() {
-        return "Position(offset="+offset+"; line="+line+"; column="+column+")";
+        return "Position(offset="+offset()+"; line="+line()+"; column="+column()+")";
+    }
+
+    /**
+     * Индекс строк не сериализуется, т.к. ссылается на разбираемые данные, поэтому
+     * вместо позиции с ленивым вычислением строки и столбца сериализуем ее копию
+     * с уже вычисленными значениями.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (lines == null) {
+            return this;
+        }
+        final Position p = new Position();
+        p.offset = offset;
+        p.base   = base;
+        p.line   = line();
+        p.column = column();
+        return p;
     }
 }
\ No newline at end of file
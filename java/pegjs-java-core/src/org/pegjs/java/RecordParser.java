@@ -0,0 +1,380 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pegjs.java.exceptions.SyntaxError;
+
+/**
+ * Разбирает последовательность независимых записей, каждая из которых сопоставляется правилу,
+ * помеченному в грамматике аннотацией {@code @Record("<разделитель>")}. Результат совпадает с
+ * результатом разбора правила {@code Records = Record*}, за которым должен следовать конец данных.
+ * <p>
+ * Большие данные разбиваются на участки сразу после вхождений разделителя, и участки
+ * разбираются параллельно собственными экземплярами парсера. Позиции внутри участков
+ * отсчитываются от начала всех данных, поэтому смещения, номера строк и столбцов в результатах
+ * такие же, как при последовательном разборе. Если хотя бы один участок не удалось разобрать
+ * целиком (например, разделитель встретился внутри записи) или при разборе какой-либо его записи
+ * потребовалось заглянуть за конец участка (запись могла бы продолжиться в следующем участке),
+ * все данные разбираются последовательно, поэтому и результат, и сообщение об ошибке не зависят
+ * от разбиения.
+ * <p>
+ * Файлы, отображенные в память, могут быть больше 2 Гб: такие файлы разбираются участками не
+ * более 1 Гб, каждый из которых представлен отдельной последовательностью символов -- окном
+ * файла. Смещения позиций в результатах при этом отсчитываются от начала файла.
+ * <p>
+ * Экземпляры создаются сгенерированным парсером для каждого правила-записи и потокобезопасны.
+ *
+ * @param <R> Тип результата правила-записи.
+ * @author Mingun
+ */
+public abstract class RecordParser<R> {
+    /** Минимальный размер участка в символах. Меньшие данные разбираются последовательно. */
+    private static final int MIN_CHUNK = 64 * 1024;
+    /** Количество участков на поток пула, чтобы потоки, разобравшие свои участки, не простаивали. */
+    private static final int CHUNKS_PER_THREAD = 4;
+    /** Максимальный размер участка файлов больше 2 Гб в байтах. */
+    private static final int MAX_CHUNK = 1 << 30;
+
+    /** Строка, которой заканчивается каждая запись. */
+    private final String delimiter;
+    /** Количество параллельных разборов, данные которых пришлось разобрать последовательно. */
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param delimiter Строка, которой заканчивается каждая запись. Данные разбиваются на
+     *        участки только сразу после нее.
+     */
+    protected RecordParser(String delimiter) {
+        if (delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Record delimiter must not be empty");
+        }
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Возвращает количество вызовов {@link #parse(CharSequence, ForkJoinPool)}, в которых
+     * разбор участков оказался неудачным и все данные были разобраны последовательно.
+     * Разбор данных, слишком маленьких для разбиения на участки, не учитывается.
+     */
+    public final long fallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Разбирает все записи последовательно в текущем потоке.
+     * @param input Разбираемая последовательность символов.
+     * @return Результаты разбора записей в порядке их следования.
+     * @throws SyntaxError Если данные не являются последовательностью записей.
+     */
+    public abstract List<R> parse(CharSequence input) throws SyntaxError;
+    /**
+     * Разбирает записи участка разбираемой последовательности. Записи должны занимать весь
+     * участок и не просматривать символы за его концом, иначе разбор неудачен.
+     * @param input Разбираемая последовательность символов целиком.
+     * @param from Позиция начала участка в последовательности.
+     * @param end Смещение конца участка (не включая).
+     * @param errors Если `false`, сообщение об ошибке не формируется, т.к. при ошибке данные
+     *        будут разобраны повторно.
+     * @return Результаты разбора записей участка в порядке их следования.
+     * @throws SyntaxError Если участок не является последовательностью записей или разбор
+     *         записи заглядывал за конец участка.
+     */
+    protected abstract List<R> parse(CharSequence input, Position from, int end, boolean errors) throws SyntaxError;
+
+    /**
+     * Разбирает записи параллельно в указанном пуле потоков.
+     * @param input Разбираемая последовательность символов. Не должна изменяться во время разбора.
+     * @param pool Пул потоков, в котором разбираются участки данных.
+     * @return Результаты разбора записей в порядке их следования.
+     * @throws SyntaxError Если данные не являются последовательностью записей.
+     */
+    public final List<R> parse(final CharSequence input, ForkJoinPool pool) throws SyntaxError {
+        final List<Position> starts = split(input, Math.max(MIN_CHUNK, input.length() / (pool.getParallelism() * CHUNKS_PER_THREAD)));
+        if (starts.size() == 1) {
+            return parse(input);
+        }
+        final List<Future<List<R>>> chunks = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); ++i) {
+            final Position from = starts.get(i);
+            final int end = i + 1 < starts.size() ? starts.get(i + 1).offset : input.length();
+            chunks.add(pool.submit(new Callable<List<R>>() {
+                @Override
+                public List<R> call() {
+                    return parse(input, from, end, false);
+                }
+            }));
+        }
+        final List<List<R>> results = new ArrayList<>(chunks.size());
+        int size = 0;
+        try {
+            for (final Future<List<R>> chunk : chunks) {
+                final List<R> r = chunk.get();
+                results.add(r);
+                size += r.size();
+            }
+        } catch (ExecutionException ex) {
+            // Участок разбит неверно или содержит ошибку -- разбираем все заново последовательно,
+            // чтобы сформировать такой же результат или ошибку, как и без разбиения.
+            return sequential(input, chunks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return sequential(input, chunks);
+        }
+        final List<R> result = new ArrayList<>(size);
+        for (final List<R> r : results) {
+            result.addAll(r);
+        }
+        return result;
+    }
+    /**
+     * Разбирает записи отображенного в память файла последовательно в текущем потоке. Файлы
+     * больше 2 Гб разбираются участками (см. {@link #parse(FileChannel, ForkJoinPool)}).
+     * @param input Канал открытого на чтение файла. Канал не закрывается. Каждый байт файла
+     *        рассматривается как один символ.
+     * @return Результаты разбора записей в порядке их следования.
+     * @throws IOException Если файл не удалось отобразить в память.
+     * @throws SyntaxError Если данные не являются последовательностью записей.
+     */
+    public final List<R> parse(FileChannel input) throws IOException, SyntaxError {
+        final MappedCharSequence file = new MappedCharSequence(input);
+        if (file.size() == file.length()) {
+            return parse(file);
+        }
+        return parse(file, null, MAX_CHUNK);
+    }
+    /**
+     * Разбирает записи отображенного в память файла параллельно в указанном пуле потоков.
+     * <p>
+     * Файлы больше 2 Гб разбиваются на участки не более 1 Гб, каждый из которых разбирается в
+     * своем окне файла. Участок, который не удалось разобрать, разбирается последовательно вместе
+     * со следующими, пока записи не закончатся точно на границе участка, не просматривая данные
+     * за ней. Поэтому разбор записей таких файлов не должен просматривать данные за разделителем
+     * последней записи, а запись, пересекающая границы участков, вместе с ними должна помещаться
+     * в 2 Гб. Иначе выбрасывается {@link SyntaxError}.
+     * @param input Канал открытого на чтение файла. Канал не закрывается. Каждый байт файла
+     *        рассматривается как один символ.
+     * @param pool Пул потоков, в котором разбираются участки данных.
+     * @return Результаты разбора записей в порядке их следования.
+     * @throws IOException Если файл не удалось отобразить в память.
+     * @throws SyntaxError Если данные не являются последовательностью записей.
+     */
+    public final List<R> parse(FileChannel input, ForkJoinPool pool) throws IOException, SyntaxError {
+        final MappedCharSequence file = new MappedCharSequence(input);
+        if (file.size() == file.length()) {
+            return parse(file, pool);
+        }
+        final long size = file.size() / (pool.getParallelism() * CHUNKS_PER_THREAD);
+        return parse(file, pool, (int)Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size)));
+    }
+
+    private List<R> sequential(CharSequence input, List<Future<List<R>>> chunks) {
+        fallbacks.incrementAndGet();
+        for (final Future<List<R>> chunk : chunks) {
+            chunk.cancel(false);
+        }
+        return parse(input);
+    }
+    /**
+     * Разбирает файл больше 2 Гб участками, каждый в своем окне файла.
+     * @param pool Пул потоков, в котором разбираются участки, или {@code null}, чтобы разбирать
+     *        их последовательно в текущем потоке.
+     * @param size Примерный размер участка.
+     */
+    private List<R> parse(final MappedCharSequence file, ForkJoinPool pool, int size) {
+        final List<Position> starts = split(file, size);
+        final List<Future<List<R>>> chunks = new ArrayList<>(starts.size());
+        if (pool != null) {
+            for (int i = 0; i < starts.size(); ++i) {
+                final int index = i;
+                chunks.add(pool.submit(new Callable<List<R>>() {
+                    @Override
+                    public List<R> call() {
+                        return parse(file, starts, index, index + 1, false);
+                    }
+                }));
+            }
+        }
+        final List<R> result = new ArrayList<>();
+        boolean fallback = false;
+        try {
+            int i = 0;
+            while (i < starts.size()) {
+                int j = i + 1;
+                List<R> r = pool != null ? get(chunks.get(i)) : tryParse(file, starts, i, j);
+                // Участок разбит неверно или содержит ошибку -- разбираем его последовательно вместе
+                // со следующими, пока записи не закончатся на границе участка. Количество участков
+                // удваивается, чтобы не разбирать одни и те же данные много раз.
+                while (r == null) {
+                    if (!fallback) {
+                        fallback = true;
+                        fallbacks.incrementAndGet();
+                    }
+                    int next = Math.min(starts.size(), i + 2 * (j - i));
+                    while (next > j && end(file, starts, next) - starts.get(i).base > Integer.MAX_VALUE) {
+                        --next;
+                    }
+                    if (next == j) {
+                        // Объединять больше некуда, ошибка не зависит от разбиения. Разбираем
+                        // участки еще раз, чтобы сформировать сообщение об ошибке.
+                        r = parse(file, starts, i, j, true);
+                        break;
+                    }
+                    j = next;
+                    r = tryParse(file, starts, i, j);
+                }
+                result.addAll(r);
+                i = j;
+            }
+        } finally {
+            for (final Future<List<R>> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+        return result;
+    }
+    /**
+     * Разбирает участки файла больше 2 Гб с {@code from} до {@code to} (не включая) в окне файла,
+     * начинающемся с первого из них.
+     */
+    private List<R> parse(MappedCharSequence file, List<Position> starts, int from, int to, boolean errors) {
+        final Position start = starts.get(from);
+        final long length = Math.min(file.size() - start.base, Integer.MAX_VALUE);
+        return parse(file.window(start.base, (int)length), start, (int)(end(file, starts, to) - start.base), errors);
+    }
+    /** Разбирает участки так же, как {@link #parse(MappedCharSequence, List, int, int, boolean)}. */
+    private List<R> tryParse(MappedCharSequence file, List<Position> starts, int from, int to) {
+        try {
+            return parse(file, starts, from, to, false);
+        } catch (SyntaxError ex) {
+            return null;
+        }
+    }
+    /** Ожидает результат разбора участка. */
+    private List<R> get(Future<List<R>> chunk) {
+        try {
+            return chunk.get();
+        } catch (ExecutionException ex) {
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+    /** Возвращает смещение в файле начала участка с указанным номером или конца файла. */
+    private static long end(MappedCharSequence file, List<Position> starts, int index) {
+        return index < starts.size() ? starts.get(index).base : file.size();
+    }
+
+    /**
+     * Разбивает последовательность на участки примерно указанного размера, заканчивающиеся
+     * разделителем записей, и вычисляет позиции их начал.
+     * @return Позиции начал участков, первая всегда в начале последовательности.
+     */
+    private List<Position> split(CharSequence input, int size) {
+        final List<Position> starts = new ArrayList<>();
+        final Position pos = new Position();
+        starts.add(pos.clone());
+
+        int offset = size;
+        while (offset < input.length()) {
+            final int start = boundary(input, offset);
+            if (start < 0) break;
+
+            pos.next(input, start);
+            starts.add(pos.clone());
+            offset = start + size;
+        }
+        return starts;
+    }
+    /**
+     * Разбивает файл больше 2 Гб на участки примерно указанного размера так же, как
+     * {@link #split(CharSequence, int)}. Смещения позиций начал участков равны 0, а смещения
+     * самих участков в файле хранятся в {@link Position#base}.
+     */
+    private List<Position> split(MappedCharSequence file, int size) {
+        final List<Position> starts = new ArrayList<>();
+        Position start = new Position();
+        starts.add(start);
+
+        final long length = file.size();
+        while (length - start.base > size) {
+            // Разделитель ищется в окне файла, начинающемся с последнего участка.
+            final CharSequence window = file.window(start.base, (int)Math.min(length - start.base, Integer.MAX_VALUE));
+            final int found = boundary(window, size);
+            if (found < 0) break;
+
+            final Position pos = start.clone();
+            pos.next(window, found);
+            start = pos.rebase();
+            starts.add(start);
+        }
+        return starts;
+    }
+    /**
+     * Ищет первую, начиная с указанного смещения, границу участков -- позицию сразу после
+     * разделителя записей, не в конце последовательности.
+     * @return Смещение границы или {@code -1}, если ее нет.
+     */
+    private int boundary(CharSequence input, int from) {
+        final int length = input.length();
+        int offset = from;
+        while (true) {
+            final int found = indexOf(input, offset);
+            if (found < 0) return -1;
+
+            final int start = found + delimiter.length();
+            // Позиция между '\r' и '\n' не может быть началом строки индекса строк участка.
+            if (start < length && (input.charAt(start - 1) != '\r' || input.charAt(start) != '\n')) {
+                return start;
+            }
+            offset = found + 1;
+        }
+    }
+    /** Ищет первое вхождение разделителя записей, начиная с указанного смещения. */
+    private int indexOf(CharSequence input, int from) {
+        final char first = delimiter.charAt(0);
+        final int last = input.length() - delimiter.length();
+        for (int i = from; i <= last; ++i) {
+            if (input.charAt(i) != first) continue;
+
+            int j = 1;
+            while (j < delimiter.length() && input.charAt(i + j) == delimiter.charAt(j)) {
+                ++j;
+            }
+            if (j == delimiter.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -23,12 +23,18 @@
  */
 package org.pegjs.java;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.SortedSet;
 import java.util.regex.Pattern;
 import org.pegjs.java.exceptions.SyntaxError;
 
@@ -43,21 +49,168 @@ import org.pegjs.java.exceptions.SyntaxError;
 public class State extends Expect implements Serializable {
     //<editor-fold defaultstate="collapsed" desc="Поля и константы">
     private static final long serialVersionUID = -5577139531082551736L;
-    private static final Expected ANY = new Expected(Expected.Type.ANY, null, "any character");
-    private static final Expected EOF = new Expected(Expected.Type.EOF, null, "end of input");
+    /**
+     * Результат {@link #decode} для некорректной последовательности байт UTF-8: символ
+     * {@literal '\\uFFFD'} длиной в 1 байт.
+     */
+    private static final int MALFORMED = (1 << 24) | 0xFFFD;
+    /** Виды событий на {@link #events ленте событий}. */
+    private static final int ENTER = 0;
+    private static final int EXIT  = 1;
+    private static final int TOKEN = 2;
+    private static final int DEFER = 3;
 
     /** Разбираемая последовательность. */
     private CharSequence input;
+    /**
+     * Длина разбираемой последовательности. Для потоковых данных -- количество прочитанных
+     * к настоящему моменту символов.
+     */
+    private int inputLength;
+    /** Разбираемая последовательность, если данные читаются из потока, иначе {@code null}. */
+    private transient StreamCharSequence stream;
+    /**
+     * Если `true`, разбирается участок последовательности, за которым следуют другие участки, а
+     * {@link #inputLength} -- смещение его конца (см. {@link #init(CharSequence, Position, int, boolean)}).
+     */
+    private boolean chunk;
+    /**
+     * Смещения, к которым разбор еще может вернуться. Заполняется генерируемым кодом в потоковом
+     * режиме: каждая сохраненная для отката позиция записывается в элемент с номером, равным сумме
+     * высоты стека при входе в правило и номера переменной в стеке позиций правила.
+     */
+    private int[] pins = new int[16];
+    /** Количество используемых элементов в массиве {@link #pins}. */
+    private int pinned;
     /** Текущее положение в разбираемой последовательности. */
-    protected Position current;
+    protected Position current = new Position();
     /**
      * Позиция в разбираемой последовательности перед началом разбора правила,
      * на которое навешено действие или предикат.
      */
     protected Position mark;
+    /**
+     * Смещение в разбираемой последовательности перед началом разбора правила, на которое
+     * навешено действие или предикат. Используется вместо {@link #mark} в режиме ленивого
+     * отслеживания строк, в котором позиция однозначно определяется смещением.
+     */
+    protected int markOffset;
+    /** Индекс начал строк в режиме ленивого отслеживания строк или {@code null}. */
+    private LineIndex lines;
+    /**
+     * Таблица запомненных результатов разбора правил. Создается при первом запоминании,
+     * поэтому парсеры, сгенерированные без поддержки packrat-режима, за нее не платят.
+     */
+    private MemoTable memo;
+    /**
+     * Смещение, в котором разбор был зафиксирован последний раз (см. {@link #commit()}).
+     * Разбор не может вернуться к меньшим смещениям.
+     */
+    private int cut;
+    /**
+     * Глубина вложенности простых предикатов ({@code &} и {@code !}), разбираемых в данный момент.
+     * Разбор внутри предиката всегда откатывается, поэтому в нем не фиксируется (см. {@link #commit()}).
+     * Поддерживается генерируемым кодом, только если в грамматике есть фиксирующие правила.
+     */
+    protected int predicates;
+    /**
+     * Смещение (не включая), до которого просматривались данные с начала разбора текущего
+     * запоминаемого правила. Сохраняется в таблице запомненных результатов, чтобы после
+     * {@link #edit изменения данных} повторно использовать только не затронутые им результаты.
+     */
+    private int reach;
+    /** Значения {@link #reach} правил, вызвавших разбираемые в данный момент запоминаемые правила. */
+    private int[] reaches = new int[16];
+    /** Количество используемых элементов в массиве {@link #reaches}. */
+    private int depth;
+    /**
+     * Если `true`, текущий разбор использует результаты, запомненные до {@link #edit изменения}
+     * данных, поэтому при неудаче его нужно повторить с начала без них.
+     */
+    private boolean edited;
+    /**
+     * Если `true`, разбираемая последовательность содержит байты текста в кодировке UTF-8
+     * (см. {@link #utf8()}). Кешируется при инициализации, чтобы не вызывать виртуальный метод
+     * при разборе каждого символа.
+     */
+    private boolean utf8;
+    /** Получатель событий разбора или {@code null}, если события не нужны. */
+    private transient ParseListener listener;
+    /**
+     * Лента событий разбора, еще не переданных {@link #listener слушателю}, и {@link #defer
+     * отложенных действий}: по три элемента на событие -- номер правила, сдвинутый на 2 бита,
+     * с видом события в младших битах, и два смещения.
+     */
+    private int[] events = new int[48];
+    /**
+     * Отложенные действия для событий ленты с тем же номером. Создается при первом откладывании
+     * действия, поэтому парсеры, выполняющие действия сразу, за него не платят.
+     */
+    private Object[] actions;
+    /**
+     * Если `true`, действия грамматики откладываются (см. {@link #deferActions()}). Кешируется
+     * при инициализации.
+     */
+    private boolean defer;
+    /** Количество событий, записанных на ленту с начала разбора, включая переданные слушателю. */
+    private int recorded;
+    /** Количество событий, переданных слушателю. Эти события уже нельзя отменить. */
+    private int flushed;
+    /**
+     * Наименьшее смещение начала текста отложенных действий на ленте или
+     * {@link Integer#MAX_VALUE}, если их нет. Действиям может понадобиться их текст, поэтому при
+     * потоковом разборе данные от этого смещения не отбрасываются. Не увеличивается при отмене
+     * действий до {@link #flush() выполнения} всей ленты, т.е. может быть меньше действительного.
+     */
+    private int deferred = Integer.MAX_VALUE;
+    /**
+     * Счетчики профилирования правил, подсчитанные этим экземпляром парсера и еще не прибавленные
+     * к {@link #stats() общей статистике}, расположенные так же, как в {@link ParseStats}.
+     * Создаются при первом вызове правила в режиме профилирования.
+     */
+    private long[] counters;
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Внутренние классы и интерфейсы">
+    /** Отложенный вызов действия грамматики и, после его выполнения, его результат. */
+    private static final class Deferred {
+        /** Номер действия для {@link State#perform}. */
+        final int action;
+        /** Аргументы действия или {@code null}, если их нет или действие уже выполнено. */
+        Object[] args;
+        /** Смещения начала и конца текста, сопоставленного действием. */
+        final int start;
+        final int end;
+        /** Позиции начала и конца текста, если номера строк отслеживаются при разборе. */
+        final Position from;
+        final Position to;
+        /** Результат действия. */
+        Object value;
+        boolean done;
+
+        Deferred(int action, Object[] args, int start, int end, Position from, Position to) {
+            this.action = action;
+            this.args   = args;
+            this.start  = start;
+            this.end    = end;
+            this.from   = from;
+            this.to     = to;
+        }
+    }
+    /**
+     * Список результатов элементов последовательности или повторения, создаваемый при отложенном
+     * выполнении действий. Может содержать результаты {@link Deferred отложенных действий},
+     * которые заменяются их значениями при первом использовании списка.
+     */
+    private static final class Values extends ArrayList<Object> {
+        private static final long serialVersionUID = 4731829170937523710L;
+        /** Если `true`, отложенные результаты в списке уже заменены значениями. */
+        transient boolean resolved;
+
+        Values(Object[] elements) {
+            super(Arrays.asList(elements));
+        }
+    }
     /**
      * Представляет массив байт как последовательность символов. Каждый байт массива
      * рассматривается как один символ.
@@ -82,12 +235,16 @@ public class State extends Expect implements Serializable {
         @Override
         public int length() { return length; }
         @Override
-        public char charAt(int index) { return (char)content[offset + index]; }
+        public char charAt(int index) { return (char)(content[offset + index] & 0xFF); }
         @Override
         public CharSequence subSequence(int start, int end) {
             return new ByteArrayAsCharSequence(content, offset + start, end - start);
         }
         @Override
+        public String toString() {
+            return new String(content, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        @Override
         public ByteArrayAsCharSequence clone() {
             return new ByteArrayAsCharSequence(Arrays.copyOfRange(content, offset, offset + length));
         }
@@ -97,19 +254,30 @@ public class State extends Expect implements Serializable {
      * рассматривается как один символ.
      */
     private static final class ByteBufferAsCharSequence implements CharSequence {
+        /** Срез буфера, начинающийся с символа с индексом 0. Позиция среза не используется. */
         private final ByteBuffer content;
         
         public ByteBufferAsCharSequence(ByteBuffer content) {
-            this.content = content.duplicate();
+            this.content = content.slice();
         }
         @Override
-        public int length() { return content.remaining(); }
+        public int length() { return content.limit(); }
         @Override
-        public char charAt(int index) { return (char)content.get(index); }
+        public char charAt(int index) { return (char)(content.get(index) & 0xFF); }
         @Override
         public CharSequence subSequence(int start, int end) {
-            content.position(start);
-            return new ByteBufferAsCharSequence((ByteBuffer)content.slice().limit(end));
+            // Работаем с копией, чтобы последовательность не зависела от позиции общего буфера.
+            final ByteBuffer copy = content.duplicate();
+            copy.limit(end).position(start);
+            return new ByteBufferAsCharSequence(copy);
+        }
+        @Override
+        public String toString() {
+            final char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; ++i) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
         }
     }
     //</editor-fold>
@@ -128,7 +296,7 @@ public class State extends Expect implements Serializable {
      * @return Объект, описывающий диапазон разбираемой последовательности.
      */
     public Location location() {
-        return new Location(mark, current.clone());
+        return new Location(lines != null ? new Position(lines, current.base, markOffset) : mark, current.clone());
     }
     /**
      * Возвращает подпоследовательность, представляющую текущий разбираемый элемент грамматики.
@@ -141,7 +309,65 @@ public class State extends Expect implements Serializable {
      *         текущей {@link #location() позиции} в разбираемых данных.
      */
     public CharSequence text() {
-        return location().region(input());
+        final Location location = location();
+        return slice(location.start().offset, location.end().offset);
+    }
+    /**
+     * Освобождает ссылки на разбираемые данные и результаты разбора, оставляя выделенные
+     * парсером структуры для повторного использования. После вызова парсер можно использовать
+     * для нового разбора так же, как только что созданный. Вызывается {@link ParserPool пулом
+     * парсеров} при возврате парсера в пул.
+     * <p>
+     * Состояние пользовательского кода, заданное в инициализаторе грамматики, и {@link #listen
+     * получатель событий разбора} не сбрасываются, а счетчики профилирования прибавляются к
+     * {@link #stats() общей статистике}.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        input = null;
+        inputLength = 0;
+        stream = null;
+        chunk = false;
+        pinned = 0;
+        lines = null;
+        current.reset(null);
+        mark = null;
+        markOffset = 0;
+        if (memo != null) {
+            memo.clear();
+        }
+        cut = 0;
+        predicates = 0;
+        reach = 0;
+        depth = 0;
+        edited = false;
+        recorded = 0;
+        flushed = 0;
+        deferred = Integer.MAX_VALUE;
+        if (actions != null) {
+            Arrays.fill(actions, null);
+        }
+        publish();
+    }
+    /**
+     * Задает получателя событий разбора. События сообщаются только парсерами, сгенерированными
+     * в режиме событий, остальные парсеры слушателя игнорируют.
+     * @param listener Получатель событий последующих разборов или {@code null}, чтобы
+     *        перестать их получать.
+     */
+    public void listen(ParseListener listener) {
+        this.listener = listener;
+    }
+    /**
+     * Возвращает статистику разбора по правилам, общую для всех экземпляров класса парсера.
+     * Статистика собирается только парсерами, сгенерированными в режиме профилирования, и
+     * пополняется по окончании каждого разбора. Для публикации через JMX ее можно
+     * {@link ParseStats#register() зарегистрировать}.
+     * @return Статистика разбора или {@code null}, если парсер сгенерирован без профилирования.
+     */
+    public ParseStats stats() {
+        return null;
     }
     /**
      * Прерывает разбор после завершения действия или предиката, формируя синтаксическую ошибку в
@@ -155,7 +381,8 @@ public class State extends Expect implements Serializable {
             null,
             Arrays.asList(new Expected(Expected.Type.CUSTOM, value, value)),
             location,
-            found(location)
+            found(location),
+            errorStackTraces()
         );
     }
     /**
@@ -173,7 +400,7 @@ public class State extends Expect implements Serializable {
      * @param location Позиция, в которой будет сообщено об ошибке разбора.
      */
     public void error(String message, Location location) {
-        throw new SyntaxError(message, (SortedSet<Expected>)null, location, found(location));
+        throw new SyntaxError(message, (List<Expected>)null, location, found(location), errorStackTraces());
     }
     /**
      * Немедленно прерывает разбор, формируя синтаксическую ошибку в {@link #location() текущей}
@@ -191,19 +418,23 @@ public class State extends Expect implements Serializable {
      *         в случае неудачи сопоставления (конца разбираемых данных).
      */
     protected final Object parseAny() {
-        if (current.offset < input.length()) {
-            final char ch = input.charAt(current.offset);
-            current.next(ch);
-            return ch;
+        final int offset = current.offset;
+        if (available(offset + 1)) {
+            final char ch = input.charAt(offset);
+            if (ch < 0x80 || !utf8) {
+                current.next(ch);
+                return ch;
+            }
+            return next(unit(offset));
         }
-        return fail(ANY);
+        return fail(Expected.ANY);
     }
     /**
      * @return Character с сопоставившемся символом или константу {@link IParser#FAILED}
      *         в случае неудачи сопоставления.
      */
     protected final Object parsePattern(Pattern pattern, Expected expected, boolean inverse) {
-        if (current.offset < input.length()) {
+        if (available(current.offset + 1)) {
             final char ch = input.charAt(current.offset);
             if (pattern.matcher(String.valueOf(ch)).matches() ^ inverse) {
                 current.next(ch);
@@ -212,6 +443,193 @@ public class State extends Expect implements Serializable {
         }
         return fail(expected);
     }
+    /**
+     * Сопоставляет символ в текущей позиции со скомпилированным классом символов. В отличие от
+     * {@link #parsePattern} не создает строк и не запускает движок регулярных выражений.
+     *
+     * @param cls Класс символов, которому должен принадлежать символ в текущей позиции.
+     * @param expected Описание ошибки, которое будет использоваться, если символ в текущей
+     *        позиции не принадлежит классу.
+     * @return Character с сопоставившемся символом или константу {@link IParser#FAILED}
+     *         в случае неудачи сопоставления.
+     */
+    protected final Object parseClass(CharClass cls, Expected expected) {
+        final int offset = current.offset;
+        if (available(offset + 1)) {
+            final char ch = input.charAt(offset);
+            if (ch < 0x80 || !utf8) {
+                if (cls.matches(ch)) {
+                    current.next(ch);
+                    return ch;
+                }
+            } else {
+                final int decoded = unit(offset);
+                if (cls.matches((char)decoded)) {
+                    return next(decoded);
+                }
+            }
+        }
+        return fail(expected);
+    }
+    /**
+     * Сопоставляет символ в текущей позиции с классом символов так же, как {@link #parseClass},
+     * но не возвращает сопоставившийся символ. Используется генерируемым кодом в повторениях,
+     * результатом которых является текст, а не список символов, чтобы не упаковывать символы.
+     *
+     * @param cls Класс символов, которому должен принадлежать символ в текущей позиции.
+     * @param expected Описание ошибки, которое будет использоваться, если символ в текущей
+     *        позиции не принадлежит классу.
+     * @return `true`, если символ сопоставился и позиция сдвинута за него.
+     */
+    protected final boolean matchClass(CharClass cls, Expected expected) {
+        final int offset = current.offset;
+        if (available(offset + 1)) {
+            final char ch = input.charAt(offset);
+            if (ch < 0x80 || !utf8) {
+                if (cls.matches(ch)) {
+                    current.next(ch);
+                    return true;
+                }
+            } else {
+                final int decoded = unit(offset);
+                if (cls.matches((char)decoded)) {
+                    current.next(input, offset + (decoded >>> 24));
+                    return true;
+                }
+            }
+        }
+        fail(expected);
+        return false;
+    }
+    /**
+     * Сопоставляет любой символ так же, как {@link #parseAny}, но не возвращает его.
+     * @return `true`, если символ сопоставился и позиция сдвинута за него, `false` в конце
+     *         разбираемых данных.
+     */
+    protected final boolean matchAny() {
+        final int offset = current.offset;
+        if (available(offset + 1)) {
+            final char ch = input.charAt(offset);
+            if (ch < 0x80 || !utf8) {
+                current.next(ch);
+            } else {
+                current.next(input, offset + (unit(offset) >>> 24));
+            }
+            return true;
+        }
+        fail(Expected.ANY);
+        return false;
+    }
+    /**
+     * Проверяет, принадлежит ли символ в текущей позиции классу символов, не сдвигая позицию
+     * и не записывая ожиданий. Используется генерируемым кодом, чтобы не пробовать альтернативы,
+     * которые заведомо не могут начаться с текущего символа.
+     *
+     * @param cls Множество символов, с которых может начинаться альтернатива.
+     * @return `true`, если текущий символ принадлежит классу, `false`, если не принадлежит или
+     *         достигнут конец разбираемых данных.
+     */
+    protected final boolean lookahead(CharClass cls) {
+        final int offset = current.offset;
+        if (!available(offset + 1)) {
+            return false;
+        }
+        final char ch = input.charAt(offset);
+        return cls.matches(ch < 0x80 || !utf8 ? ch : (char)unit(offset));
+    }
+    /**
+     * Сопоставляет текст в текущей позиции с литералом с учетом регистра символов. Сравнение
+     * производится посимвольно непосредственно в разбираемой последовательности, поэтому ни
+     * при успехе, ни при неудаче сопоставления объекты не создаются.
+     *
+     * @param literal Строка, на соответствие с которой проверяется текст в текущей позиции.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return Сам литерал (его содержимое совпадает с сопоставившимся текстом) или константу
+     *         {@link IParser#FAILED} в случае неудачи сопоставления.
+     */
+    protected final Object parseLiteral(String literal, Expected expected) {
+        return matchLiteral(literal, expected) ? literal : IParser.FAILED;
+    }
+    /**
+     * Сопоставляет текст в текущей позиции с литералом с учетом регистра символов так же, как
+     * {@link #parseLiteral(String, Expected)}, но не возвращает результат. Используется генерируемым
+     * кодом, когда нужен только текст, покрытый выражением.
+     *
+     * @param literal Строка, на соответствие с которой проверяется текст в текущей позиции.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return `true`, если литерал сопоставился и позиция сдвинута за него.
+     */
+    protected final boolean matchLiteral(String literal, Expected expected) {
+        final int start = current.offset;
+        final int length = literal.length();
+        if (available(start + length)) {
+            int i = 0;
+            while (i < length && input.charAt(start + i) == literal.charAt(i)) {
+                ++i;
+            }
+            if (i == length) {
+                current.next(input, start + length);
+                return true;
+            }
+        }
+        fail(expected);
+        return false;
+    }
+    /**
+     * Сопоставляет текст в текущей позиции с литералом без учета регистра символов, используя
+     * заранее вычисленные генератором варианты регистра символов литерала. Символ совпадает с
+     * символом литерала по тем же правилам, что и в {@link String#equalsIgnoreCase}.
+     *
+     * @param folded Литерал, каждый символ {@code c} которого заменен на
+     *        {@code Character.toLowerCase(Character.toUpperCase(c))}.
+     * @param upper Литерал, каждый символ которого приведен к верхнему регистру.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return CharSequence с сопоставившейся подпоследовательностью или константу {@link IParser#FAILED}
+     *         в случае неудачи сопоставления.
+     */
+    protected final Object parseLiteral(String folded, String upper, Expected expected) {
+        final int start = current.offset;
+        return matchLiteral(folded, upper, expected)
+            ? input.subSequence(start, current.offset)
+            : IParser.FAILED;
+    }
+    /**
+     * Сопоставляет текст в текущей позиции с литералом без учета регистра символов так же, как
+     * {@link #parseLiteral(String, String, Expected)}, но не возвращает результат.
+     *
+     * @param folded Литерал, каждый символ {@code c} которого заменен на
+     *        {@code Character.toLowerCase(Character.toUpperCase(c))}.
+     * @param upper Литерал, каждый символ которого приведен к верхнему регистру.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return `true`, если литерал сопоставился и позиция сдвинута за него.
+     */
+    protected final boolean matchLiteral(String folded, String upper, Expected expected) {
+        final int start = current.offset;
+        final int length = folded.length();
+        if (available(start + length)) {
+            int i = 0;
+            while (i < length) {
+                final char ch = input.charAt(start + i);
+                final char f = folded.charAt(i);
+                // Быстрая проверка точного совпадения, затем совпадения по правилам equalsIgnoreCase
+                if (ch != f && ch != upper.charAt(i)
+                 && Character.toLowerCase(Character.toUpperCase(ch)) != f) {
+                    break;
+                }
+                ++i;
+            }
+            if (i == length) {
+                current.next(input, start + length);
+                return true;
+            }
+        }
+        fail(expected);
+        return false;
+    }
     /**
      * @param literal Строка, на соответствие с которой проверяется текст в текущей позиции.
      * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
@@ -222,35 +640,407 @@ public class State extends Expect implements Serializable {
      *         в случае неудачи сопоставления.
      */
     protected final Object parseLiteral(String literal, Expected expected, boolean ignoreCase) {
-        final int end = current.offset + literal.length();
-        if (end <= input.length()) {
-            final CharSequence result = input.subSequence(current.offset, end);
-            if (ignoreCase) {
-                if (result.toString().equalsIgnoreCase(literal)) {
-                    current.next(input, end);
-                    return result;
-                }
-            } else {
-                if (result.toString().contentEquals(literal)) {
-                    current.next(input, end);
-                    return result;
+        if (!ignoreCase) {
+            return parseLiteral(literal, expected);
+        }
+        final int start = current.offset;
+        final int length = literal.length();
+        if (available(start + length)) {
+            int i = 0;
+            while (i < length) {
+                final char u1 = Character.toUpperCase(input.charAt(start + i));
+                final char u2 = Character.toUpperCase(literal.charAt(i));
+                if (u1 != u2 && Character.toLowerCase(u1) != Character.toLowerCase(u2)) {
+                    break;
                 }
+                ++i;
+            }
+            if (i == length) {
+                current.next(input, start + length);
+                return input.subSequence(start, start + length);
             }
         }
         return fail(expected);
     }
+    /**
+     * Сопоставляет байты в текущей позиции с литералом, содержащим символы не из ASCII, в
+     * режиме {@link #utf8() разбора UTF-8}. Литерал заранее кодируется генератором, поэтому
+     * сравнение выполняется побайтно без декодирования разбираемых данных.
+     *
+     * @param literal Литерал, который возвращается в случае успеха.
+     * @param encoded Литерал в кодировке UTF-8: каждый символ строки представляет один байт.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return Сам литерал или константу {@link IParser#FAILED} в случае неудачи сопоставления.
+     */
+    protected final Object parseUtf8Literal(String literal, String encoded, Expected expected) {
+        return matchLiteral(encoded, expected) ? literal : IParser.FAILED;
+    }
+    /**
+     * Сопоставляет текст в текущей позиции с литералом, содержащим символы не из ASCII, без
+     * учета регистра символов в режиме {@link #utf8() разбора UTF-8}. Символы разбираемых данных
+     * декодируются и сравниваются по тем же правилам, что и в {@link #parseLiteral(String, String, Expected)}.
+     *
+     * @param folded Литерал, каждый символ {@code c} которого заменен на
+     *        {@code Character.toLowerCase(Character.toUpperCase(c))}.
+     * @param upper Литерал, каждый символ которого приведен к верхнему регистру.
+     * @param expected Описание ошибки, которое будет использоваться, если текст в текущей
+     *        позиции не соответствует тексту проверяемой строки.
+     * @return Декодированный сопоставившийся текст или константу {@link IParser#FAILED}
+     *         в случае неудачи сопоставления.
+     */
+    protected final Object parseUtf8LiteralIgnoreCase(String folded, String upper, Expected expected) {
+        final int start = current.offset;
+        int offset = start;
+        int i = 0;
+        while (i < folded.length()) {
+            if (!available(offset + 1)) {
+                return fail(expected);
+            }
+            final int decoded = decode(offset);
+            final int cp = decoded & 0xFFFFFF;
+            final int f = folded.codePointAt(i);
+            if (cp != f && cp != upper.codePointAt(i)
+             && Character.toLowerCase(Character.toUpperCase(cp)) != f) {
+                return fail(expected);
+            }
+            offset += decoded >>> 24;
+            i += Character.charCount(f);
+        }
+        current.next(input, offset);
+        return slice(start, offset);
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Внутреннее API для генерируемых парсеров">
+    /**
+     * Определяет способ отслеживания номеров строк и столбцов в разбираемых данных. По умолчанию
+     * они обновляются при поглощении каждого символа. Если метод возвращает `true`, позиции хранят
+     * только смещение, а номера строки и столбца вычисляются при обращении к ним по индексу начал
+     * строк, который строится по мере необходимости. Это выгодно, если номера строк нужны только
+     * для сообщений об ошибках и немногих действий.
+     *
+     * @return `true`, если номера строк и столбцов должны вычисляться лениво.
+     */
+    protected boolean lazyLines() {
+        return false;
+    }
+    /**
+     * Определяет, в каком виде разбираются данные. По умолчанию разбираемая последовательность
+     * состоит из символов, а массивы и буферы байт рассматриваются как текст в кодировке ISO-8859-1.
+     * Если метод возвращает `true`, разбираются непосредственно байты текста в кодировке UTF-8:
+     * литералы и символы ASCII сравниваются с байтами без декодирования, символы не из ASCII
+     * декодируются только при сопоставлении с классами символов и {@link #parseAny() любым символом}.
+     * Смещения и номера столбцов в этом режиме отсчитываются в байтах.
+     * <p>
+     * Классы символов и любой символ сопоставляются с символами UTF-16, как и при разборе
+     * последовательности символов, поэтому символ вне базовой плоскости Unicode сопоставляется
+     * как два суррогата: первый занимает первые 2 байта его представления, второй -- последние 2.
+     * Текст, начинающийся или заканчивающийся между суррогатами, возвращается {@link #text()}
+     * с символами {@literal '\\uFFFD'} вместо байт неполного символа.
+     *
+     * @return `true`, если парсер разбирает байты текста в кодировке UTF-8.
+     */
+    protected boolean utf8() {
+        return false;
+    }
+    /**
+     * Инициализирует разбор последовательности символов. В режиме {@link #utf8() разбора UTF-8}
+     * последовательность предварительно кодируется в UTF-8, поэтому для такого парсера выгоднее
+     * передавать данные сразу в виде байт.
+     * @param input Разбираемая последовательность символов.
+     */
     protected final void init(CharSequence input) {
+        begin(utf8() ? new ByteArrayAsCharSequence(input.toString().getBytes(StandardCharsets.UTF_8)) : input);
+    }
+    /**
+     * Инициализирует повторный разбор последовательности символов, разобранной предыдущим
+     * разбором, после ее изменения. Результаты разбора правил, запомненные предыдущим разбором,
+     * используются повторно, если правило не просматривало измененный участок: результаты для
+     * данных до изменения -- как есть, для данных после изменения -- со сдвинутыми смещениями.
+     * Поэтому результат разбора совпадает с результатом полного разбора измененных данных при
+     * условии, что действия и предикаты не зависят от абсолютных позиций (напр., от
+     * {@link #location()}) и внешнего состояния. Если разбор с использованием старых результатов
+     * неудачен, он повторяется полностью (см. {@link #retry}), чтобы сформировать такое же
+     * сообщение об ошибке.
+     * <p>
+     * Повторно используются только результаты запоминаемых правил (packrat-режим). Если номера
+     * строк вычисляются не {@link #lazyLines() лениво}, повторно используются только результаты
+     * для данных до изменения, т.к. позиции после него хранят номера строк и столбцов.
+     *
+     * @param offset Смещение начала измененного участка. В режиме {@link #utf8() разбора UTF-8}
+     *        отсчитывается в байтах.
+     * @param removed Количество удаленных с этого смещения символов (байт в режиме UTF-8).
+     * @param inserted Вставленный на место удаленных символов текст.
+     * @throws IllegalStateException Если до этого не разбиралась последовательность символов
+     *         или массив байт (данные потоков и файлов не сохраняются).
+     * @throws IndexOutOfBoundsException Если измененный участок выходит за границы данных.
+     */
+    protected final void edit(int offset, int removed, CharSequence inserted) {
+        if (input == null || stream != null || input instanceof MappedCharSequence) {
+            throw new IllegalStateException("Only in-memory input can be reparsed after edit");
+        }
+        if (offset < 0 || removed < 0 || offset > inputLength - removed) {
+            throw new IndexOutOfBoundsException("Edit [" + offset + "; " + (offset + removed) + ") out of input bounds [0; " + inputLength + ")");
+        }
+        final CharSequence text = utf8
+            ? new ByteArrayAsCharSequence(inserted.toString().getBytes(StandardCharsets.UTF_8))
+            : inserted;
+        final StringBuilder sb = new StringBuilder(inputLength - removed + text.length());
+        sb.append(input, 0, offset).append(text).append(input, offset + removed, inputLength);
+
+        final MemoTable kept = memo;
+        memo = null;
+        if (utf8) {
+            // Каждый символ построенной строки представляет один байт.
+            begin(new ByteArrayAsCharSequence(sb.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        } else {
+            begin(sb.toString());
+        }
+        memo = kept;
+        if (memo != null) {
+            memo.edit(offset, removed, text.length() - removed, lines != null);
+            edited = true;
+        }
+    }
+    /**
+     * Подготавливает парсер к разбору указанной последовательности, повторно используя
+     * объекты, оставшиеся от предыдущего разбора.
+     */
+    private void begin(CharSequence input) {
+        reset();
         this.input = input;
-        this.current = new Position();
+        this.utf8 = utf8();
+        this.defer = deferActions();
+        this.inputLength = input.length();
+        this.stream = input instanceof StreamCharSequence ? (StreamCharSequence)input : null;
+        // Прочитанные из потока данные нельзя разобрать повторно.
+        this.collect = stream != null || !twoPassErrors();
+        this.lines = lazyLines() ? new LineIndex(input) : null;
+        this.current.reset(lines);
+    }
+    /**
+     * Инициализирует разбор участка последовательности символов. Символы за концом участка
+     * недоступны разбору, а позиции отсчитываются от начала всей последовательности (см.
+     * {@link RecordParser}).
+     * @param input Последовательность символов, участок которой разбирается.
+     * @param from Позиция начала участка, с номерами строки и столбца.
+     * @param end Смещение конца участка (не включая).
+     * @param errors Если `true`, ожидаемые элементы собираются для сообщения об ошибке. Иначе
+     *        не собираются, т.к. при ошибке участок будет разобран повторно.
+     * @throws UnsupportedOperationException В режиме {@link #utf8() разбора UTF-8}, т.к. смещения
+     *         в нем отсчитываются в байтах.
+     */
+    protected final void init(CharSequence input, Position from, int end, boolean errors) {
+        if (utf8()) {
+            throw new UnsupportedOperationException("UTF-8 byte-level parser can't parse parts of characters sequence");
+        }
+        begin(input);
+        inputLength = end;
+        // Просмотр конца последнего участка -- это просмотр конца данных, как и без разбиения.
+        chunk = end < input.length();
+        collect = errors;
+        if (lines != null) {
+            lines = new LineIndex(input, from.offset, from.line(), from.column());
+            current.reset(lines);
+            current.offset = from.offset;
+            current.base = from.base;
+        } else {
+            current.set(from);
+        }
+    }
+    /**
+     * Проверяет, что при разборе участка (см. {@link #init(CharSequence, Position, int, boolean)}) записи
+     * не просматривали символы за его концом. Такая запись при разборе данных целиком могла бы
+     * сопоставиться иначе, например, продолжиться в следующем участке, поэтому участок считается
+     * разбитым неверно. При разборе данных целиком ничего не делает.
+     * @throws SyntaxError Если разбор участка просматривал символы за его концом. Сообщение об
+     *         ошибке при этом не формируется, т.к. данные будут разобраны повторно.
+     */
+    protected final void checkChunk() {
+        if (chunk && reach > inputLength) {
+            final Position at = current.clone();
+            throw new SyntaxError("Record reaches beyond the end of chunk", (List<Expected>)null, new Location(at, at), null, false);
+        }
     }
     protected final void init(ByteBuffer input) {
-        init(new ByteBufferAsCharSequence(input));
+        begin(new ByteBufferAsCharSequence(input));
     }
     protected final void init(byte[] input) {
-        init(new ByteArrayAsCharSequence(input));
+        begin(new ByteArrayAsCharSequence(input));
+    }
+    /**
+     * Инициализирует разбор отображенного в память файла. Каждый байт файла рассматривается
+     * как один символ, как и при разборе {@link ByteBuffer}.
+     * @param input Канал открытого на чтение файла.
+     * @throws IOException Если файл не удалось отобразить в память или он больше
+     *         {@link Integer#MAX_VALUE} байт (2 Гб). Файлы большего размера можно разобрать
+     *         как последовательность записей (см. {@link RecordParser#parse(FileChannel)}).
+     */
+    protected final void init(FileChannel input) throws IOException {
+        final MappedCharSequence file = new MappedCharSequence(input);
+        if (file.size() > file.length()) {
+            throw new IOException("File too large to parse as a whole: "+file.size()+" bytes, maximum is "+file.length()+"; parse it as records");
+        }
+        begin(file);
+    }
+    /**
+     * Инициализирует разбор потока символов.
+     * @param input Разбираемый поток.
+     * @throws UnsupportedOperationException В режиме {@link #utf8() разбора UTF-8}, так как
+     *         он разбирает байты, а не символы.
+     */
+    protected final void init(Reader input) {
+        if (utf8()) {
+            throw new UnsupportedOperationException("UTF-8 byte-level parser can't parse characters from Reader, use ReadableByteChannel");
+        }
+        begin(new StreamCharSequence(input));
+    }
+    /**
+     * Инициализирует разбор данных, читаемых из канала. В режиме {@link #utf8() разбора UTF-8}
+     * байты канала читаются без декодирования.
+     * @param input Разбираемый канал.
+     * @param charset Кодировка данных канала.
+     * @throws UnsupportedOperationException В режиме {@link #utf8() разбора UTF-8}, если кодировка
+     *         отлична от UTF-8.
+     */
+    protected final void init(ReadableByteChannel input, Charset charset) {
+        Charset decoded = charset;
+        if (utf8()) {
+            if (!StandardCharsets.UTF_8.equals(charset)) {
+                throw new UnsupportedOperationException("UTF-8 byte-level parser can't parse "+charset+" data");
+            }
+            // ISO-8859-1 отображает каждый байт в символ с тем же кодом.
+            decoded = StandardCharsets.ISO_8859_1;
+        }
+        begin(new StreamCharSequence(Channels.newReader(input, decoded.newDecoder(), -1)));
+    }
+    /**
+     * Определяет, собираются ли ожидаемые элементы при разборе. По умолчанию они собираются
+     * всегда. Если метод возвращает `true`, разбор сначала выполняется без сбора ожиданий, а
+     * если он неудачен, генерируемый код повторяет его со сбором (см. {@link #retry}), чтобы
+     * сформировать такое же исключение {@link SyntaxError}, как и при однопроходном разборе.
+     * Потоки всегда разбираются за один проход, так как не могут быть прочитаны повторно.
+     * <p>
+     * Выгодно, если подавляющая часть разбираемых данных корректна. При разборе некорректных
+     * данных действия и предикаты выполняются дважды.
+     *
+     * @return `true`, если ошибки разбора нужно формировать при повторном проходе.
+     */
+    protected boolean twoPassErrors() {
+        return false;
+    }
+    /**
+     * Определяет, заполняется ли стек вызовов исключений {@link SyntaxError}, выбрасываемых
+     * при неудачном разборе. Заполнение стека -- самая дорогая часть создания исключения, а
+     * место его возникновения внутри сгенерированного парсера обычно не интересно. Выгодно
+     * отключать, если значительная часть разбираемых данных некорректна.
+     *
+     * @return `true`, если стек вызовов исключений нужно заполнять.
+     */
+    protected boolean errorStackTraces() {
+        return true;
+    }
+    /**
+     * Проверяет, нужно ли повторить разбор для формирования сообщения об ошибке, и если да,
+     * возвращает парсер в начало разбираемых данных, включив сбор ожидаемых элементов.
+     * Повторяется также неудачный разбор после {@link #edit изменения} данных, т.к. повторно
+     * использованные результаты не содержат ожиданий, собранных при их разборе.
+     * @param result Результат разбора стартового правила на первом проходе.
+     * @return `true`, если разбор был неудачным и его нужно повторить с того же правила.
+     */
+    protected final boolean retry(Object result) {
+        if (collect && !edited || result != IParser.FAILED && !available(current.offset + 1)) {
+            return false;
+        }
+        begin(input);
+        collect = true;
+        return true;
+    }
+    /**
+     * Определяет, сообщает ли генерируемый код о позициях, к которым разбор может вернуться,
+     * через {@link #pin}. Только в этом случае при разборе потоков прочитанные данные могут
+     * отбрасываться, иначе поток сохраняется в памяти целиком.
+     *
+     * @return `true`, если парсер сгенерирован в потоковом режиме.
+     */
+    protected boolean tracksBacktracking() {
+        return false;
+    }
+    /**
+     * Запоминает текущее смещение как позицию, к которой разбор может вернуться.
+     * @param index Номер элемента стека сохраненных позиций: высота стека при входе в правило
+     *        (см. {@link #pinned()}) плюс номер переменной в стеке позиций правила. Все элементы
+     *        выше указанного считаются более не нужными.
+     * @return Текущее смещение.
+     */
+    protected final int pin(int index) {
+        if (index >= pins.length) {
+            pins = Arrays.copyOf(pins, Math.max(pins.length * 2, index + 1));
+        }
+        pinned = index + 1;
+        return pins[index] = current.offset;
+    }
+    /** Возвращает текущую высоту стека сохраненных позиций. */
+    protected final int pinned() {
+        return pinned;
+    }
+    /**
+     * Освобождает все сохраненные позиции выше указанной высоты стека. Вызывается
+     * генерируемым кодом при выходе из правила.
+     */
+    protected final void unpin(int height) {
+        pinned = height;
+    }
+    /**
+     * Фиксирует разбор в текущей позиции: разбор больше никогда не вернется к меньшим смещениям.
+     * Вызывается генерируемым кодом после успешного разбора правила, помеченного в грамматике
+     * аннотацией {@code @Cut}. Внутри предикатов ничего не делает.
+     * <p>
+     * Ожидаемые элементы, сохраненные для позиций до текущей, и запомненные в них результаты
+     * разбора правил забываются, а сохраненные позиции перестают удерживать прочитанные из потока
+     * данные. Поэтому в потоковом режиме текст (<code>$</code>) выражений, начавшихся до фиксации,
+     * может быть уже недоступен. Если после фиксации разбор потребует отката перед ней, вместо
+     * отката сразу формируется синтаксическая ошибка.
+     * <p>
+     * Накопленные до фиксации {@link ParseListener события разбора} передаются слушателю.
+     * <p>
+     * При {@link #twoPassErrors() двухпроходном разборе} ожидаемые элементы после первой
+     * фиксации собираются уже на первом проходе.
+     */
+    protected final void commit() {
+        // Именованные выражения тоже подавляют ожидания (silent), но разбор внутри них фиксировать
+        // нужно, поэтому проверяется только глубина предикатов.
+        if (predicates > 0) return;
+
+        // События до фиксации уже не могут быть отменены, передаем их, пока данные потока,
+        // к которым они относятся, еще удерживаются сохраненными позициями.
+        flush();
+        cut = current.offset;
+        if (pos.offset < cut) {
+            clear();
+            pos.set(current);
+        }
+        // Ошибка после фиксации сообщается сразу, без повторного прохода, поэтому с этого момента
+        // ожидаемые элементы нужно собирать.
+        collect = true;
+        for (int i = 0; i < pinned; ++i) {
+            if (pins[i] < cut) {
+                pins[i] = cut;
+            }
+        }
+        if (memo != null) {
+            memo.discard(cut);
+        }
+    }
+    /**
+     * Возвращает смещение текущей позиции разбора в разбираемой последовательности. Используется
+     * генерируемым кодом для запоминания позиций вместо {@link Position#offset()}, который
+     * учитывает смещение последовательности в отображенном в память файле.
+     * @return Смещение текущей позиции.
+     */
+    protected final int offset() {
+        return current.offset;
     }
     /**
      * Извлекает из разбираемой последовательности подпоследовательнось, начиная с указанной
@@ -260,34 +1050,580 @@ public class State extends Expect implements Serializable {
      *         последовательности с границами от `from` до `location().end()`.
      */
     protected final CharSequence toText(Position from) {
-        return input.subSequence(from.offset, current.offset);
+        return slice(from.offset, current.offset);
+    }
+    /**
+     * Извлекает из разбираемой последовательности подпоследовательнось, начиная с указанного
+     * смещения до текущей позиции разбора.
+     * @param from Смещение, с которого начать извлечение текста.
+     * @return Результат вызова {@linkplain CharSequence#subSequence} на текущей разбираемой
+     *         последовательности с границами от `from` до `location().end()`.
+     */
+    protected final CharSequence toText(int from) {
+        return slice(from, current.offset);
+    }
+    /**
+     * Возвращает текущую позицию разбора к указанному смещению. Используется генерируемым
+     * кодом для отката вместо сохранения и восстановления копий {@link #current} в режиме
+     * ленивого отслеживания строк, в котором позиция однозначно определяется смещением.
+     * @param offset Смещение, сохраненное ранее вызовом {@link #offset()}.
+     * @throws SyntaxError Если разбор был {@link #commit() зафиксирован} после этого смещения.
+     */
+    protected final void rewind(int offset) {
+        if (offset < cut) {
+            throw failure();
+        }
+        current.offset = offset;
+    }
+    /**
+     * Возвращает текущую позицию разбора к указанной. Используется генерируемым кодом для отката
+     * вместо прямого присваивания {@link #current}, если в грамматике есть фиксирующие правила.
+     * @param position Позиция, сохраненная ранее вызовом {@code current.clone()}. Становится
+     *        текущей позицией разбора, поэтому не должна более изменяться.
+     * @throws SyntaxError Если разбор был {@link #commit() зафиксирован} после этой позиции.
+     */
+    protected final void rewind(Position position) {
+        if (position.offset < cut) {
+            throw failure();
+        }
+        current = position;
+    }
+    /**
+     * Ищет запомненный результат разбора правила в текущей позиции.
+     * @param rule Номер правила в грамматике.
+     * @param offset Смещение, с которого начинается разбор правила.
+     * @return Индекс записи для {@link #memoRestore} или {@code -1}, если правило в этой
+     *         позиции еще не разбиралось.
+     */
+    protected final int memoLookup(int rule, int offset) {
+        final int index = memo == null ? -1 : memo.find(rule, offset);
+        if (index < 0) {
+            // Правило будет разобрано и запомнено, начинаем отслеживать просмотренные им данные.
+            if (depth == reaches.length) {
+                reaches = Arrays.copyOf(reaches, depth * 2);
+            }
+            reaches[depth++] = reach;
+            reach = offset;
+        }
+        return index;
+    }
+    /**
+     * Восстанавливает состояние разбора после правила, результат которого был запомнен ранее.
+     * @param index Индекс записи, полученный от {@link #memoLookup}.
+     * @return Запомненный результат разбора правила.
+     */
+    protected final Object memoRestore(int index) {
+        if (lines != null) {
+            current.offset = memo.endOffset(index);
+        } else {
+            current = memo.end(index).clone();
+        }
+        reach = Math.max(reach, memo.reach(index));
+        return memo.result(index);
+    }
+    /**
+     * Запоминает результат разбора правила, начатого в указанной позиции и закончившегося
+     * в текущей позиции. Вызывается после каждого вызова {@link #memoLookup}, не нашедшего
+     * результата.
+     * @param rule Номер правила в грамматике.
+     * @param offset Смещение, с которого начинался разбор правила.
+     * @param result Результат разбора правила, в том числе {@link IParser#FAILED}.
+     * @return Параметр {@code result}.
+     */
+    protected final Object memoStore(int rule, int offset, Object result) {
+        if (memo == null) {
+            memo = new MemoTable();
+        }
+        memo.put(rule, offset, result, current.offset, lines != null ? null : current.clone(), reach);
+        // Данные, просмотренные правилом, просмотрены и вызвавшим его правилом.
+        reach = Math.max(reach, reaches[--depth]);
+        return result;
+    }
+    /**
+     * Возвращает имя правила с указанным номером для {@link ParseListener событий разбора}.
+     * Переопределяется парсерами, сгенерированными в режиме событий.
+     * @param rule Номер правила в грамматике.
+     * @return Имя правила.
+     */
+    protected String ruleName(int rule) {
+        return String.valueOf(rule);
+    }
+    /**
+     * Возвращает количество событий на ленте. Сохраняется генерируемым кодом в режиме событий
+     * и отложенных действий вместе с позицией для отката, чтобы при откате отменить события и
+     * действия разобранных после нее элементов (см. {@link #truncate}).
+     */
+    protected final int tape() {
+        return recorded;
+    }
+    /**
+     * Подсчитывает вызов правила в режиме профилирования.
+     * @param rule Номер правила в грамматике.
+     * @param start Смещение, с которого начинался разбор правила.
+     * @param result Результат разбора правила.
+     * @return Параметр {@code result}.
+     */
+    protected final Object profile(int rule, int start, Object result) {
+        final int i = counter(rule);
+        ++counters[i + ParseStats.INVOCATIONS];
+        if (result != IParser.FAILED) {
+            ++counters[i + ParseStats.SUCCESSES];
+            counters[i + ParseStats.CONSUMED] += current.offset - start;
+        }
+        return result;
+    }
+    /**
+     * Подсчитывает вызов правила в режиме профилирования с измерением времени.
+     * @param rule Номер правила в грамматике.
+     * @param start Смещение, с которого начинался разбор правила.
+     * @param time Значение {@link System#nanoTime()} перед разбором правила.
+     * @param result Результат разбора правила.
+     * @return Параметр {@code result}.
+     */
+    protected final Object profile(int rule, int start, long time, Object result) {
+        final int i = counter(rule);
+        counters[i + ParseStats.NANOS] += System.nanoTime() - time;
+        return profile(rule, start, result);
+    }
+    /**
+     * Подсчитывает символы, которые будут отданы откатом к указанному смещению, в режиме
+     * профилирования. Вызывается генерируемым кодом перед откатом.
+     * @param rule Номер правила в грамматике, в котором выполняется откат.
+     * @param offset Смещение, к которому выполняется откат.
+     */
+    protected final void backtrack(int rule, int offset) {
+        final int i = counter(rule);
+        counters[i + ParseStats.BACKTRACKED] += current.offset - offset;
+    }
+    /**
+     * Подсчитывает символы, которые будут отданы откатом к указанной позиции, в режиме
+     * профилирования. Вызывается генерируемым кодом перед откатом.
+     * @param rule Номер правила в грамматике, в котором выполняется откат.
+     * @param position Позиция, к которой выполняется откат.
+     */
+    protected final void backtrack(int rule, Position position) {
+        backtrack(rule, position.offset);
+    }
+    /**
+     * Отменяет события и отложенные действия, записанные на ленту после указанного ее размера.
+     * События, уже переданные слушателю при {@link #commit() фиксации} разбора, и выполненные
+     * при ней действия не отменяются.
+     * @param length Количество событий, полученное ранее от {@link #tape()}.
+     */
+    protected final void truncate(int length) {
+        recorded = Math.max(length, flushed);
+    }
+    /**
+     * Записывает событие начала разбора правила в текущей позиции.
+     * @param rule Номер правила в грамматике.
+     * @return Количество событий на ленте до записанного, для передачи в {@link #exit}.
+     */
+    protected final int enter(int rule) {
+        final int length = recorded;
+        if (listener != null) {
+            record(rule << 2 | ENTER, current.offset, current.offset);
+        }
+        return length;
+    }
+    /**
+     * Записывает событие окончания успешного разбора правила в текущей позиции или, если
+     * разбор правила неудачен, отменяет все его события.
+     * @param rule Номер правила в грамматике.
+     * @param length Значение, возвращенное {@link #enter} при начале разбора правила.
+     * @param result Результат разбора правила.
+     */
+    protected final void exit(int rule, int length, Object result) {
+        if (result == IParser.FAILED) {
+            truncate(length);
+        } else
+        if (listener != null) {
+            record(rule << 2 | EXIT, current.offset, current.offset);
+        }
+    }
+    /**
+     * Записывает токен от указанного смещения до текущей позиции, если результат успешен.
+     * Используется для литералов, классов символов и любого символа: смещение начала
+     * вычисляется в генерируемом коде перед их разбором.
+     * @param start Смещение перед разбором элемента.
+     * @param result Результат разбора элемента.
+     * @return Параметр {@code result}.
+     */
+    protected final Object token(int start, Object result) {
+        if (listener != null && result != IParser.FAILED) {
+            record(TOKEN, start, current.offset);
+        }
+        return result;
+    }
+    /**
+     * Заменяет события, записанные после указанного размера ленты, одним токеном от указанного
+     * смещения до текущей позиции. Используется для текстовых (<code>$</code>) выражений.
+     * @param length Количество событий, полученное ранее от {@link #tape()}.
+     * @param from Смещение начала текстового выражения.
+     */
+    protected final void span(int length, int from) {
+        truncate(length);
+        if (listener != null) {
+            record(TOKEN, from, current.offset);
+        }
+    }
+    /**
+     * Заменяет события, записанные после указанного размера ленты, одним токеном от указанной
+     * позиции до текущей. Используется для текстовых (<code>$</code>) выражений.
+     * @param length Количество событий, полученное ранее от {@link #tape()}.
+     * @param from Позиция начала текстового выражения.
+     */
+    protected final void span(int length, Position from) {
+        span(length, from.offset);
+    }
+    /**
+     * Определяет, когда выполняются действия грамматики. По умолчанию действие выполняется
+     * сразу после сопоставления его выражения, даже если затем объемлющая альтернатива будет
+     * отвергнута. Если метод возвращает `true`, генерируемый код вместо вызова действия
+     * записывает его на ленту (см. {@link #defer}), откат отменяет записанные после сохраненной
+     * позиции действия, а оставшиеся выполняются по порядку после успешного разбора или при
+     * {@link #commit() фиксации} разбора. Действия, о сопоставлении которых сообщено ошибкой,
+     * не выполняются.
+     * <p>
+     * Семантические предикаты по-прежнему выполняются сразу, а нужные им результаты действий
+     * вычисляются при вызове предиката. Исключения, выброшенные действиями, выбрасываются из
+     * метода разбора при их выполнении.
+     *
+     * @return `true`, если действия грамматики выполняются после разбора.
+     */
+    protected boolean deferActions() {
+        return false;
+    }
+    /**
+     * Выполняет отложенное действие грамматики. Переопределяется парсерами, сгенерированными
+     * с отложенным выполнением действий.
+     * @param action Номер действия, переданный в {@link #defer}.
+     * @param args Аргументы действия с уже вычисленными значениями отложенных результатов.
+     * @return Результат действия.
+     */
+    protected Object perform(int action, Object[] args) {
+        throw new UnsupportedOperationException("Parser has no deferred actions");
+    }
+    /**
+     * Откладывает выполнение действия грамматики, текст которого начинается с указанного
+     * смещения и заканчивается в текущей позиции.
+     * @param action Номер действия для {@link #perform}.
+     * @param start Смещение начала текста, сопоставленного действием.
+     * @param args Аргументы действия или {@code null}, если их нет.
+     * @return Отложенный результат действия. Заменяется значением при выполнении действий,
+     *         которым он передан, и в результате разбора.
+     */
+    protected final Object defer(int action, int start, Object[] args) {
+        return defer(new Deferred(action, args, start, current.offset, null, null));
+    }
+    /**
+     * Откладывает выполнение действия грамматики, текст которого начинается с указанной
+     * позиции и заканчивается в текущей.
+     * @param action Номер действия для {@link #perform}.
+     * @param from Позиция начала текста, сопоставленного действием.
+     * @param args Аргументы действия или {@code null}, если их нет.
+     * @return Отложенный результат действия.
+     */
+    protected final Object defer(int action, Position from, Object[] args) {
+        return defer(new Deferred(action, args, from.offset, current.offset, from, current.clone()));
+    }
+    /**
+     * Возвращает значение результата разбора, выполняя отложенные действия, от которых оно
+     * зависит. Используется для аргументов предикатов и границ повторений.
+     * @param value Результат разбора элемента грамматики.
+     * @return Значение результата.
+     */
+    protected final Object force(Object value) {
+        return resolve(value);
     }
     protected final Object fail(Expected e) {
         add(current, e);
         return IParser.FAILED;
     }
     protected final Object finalize(Object result) {
+        publish();
         if (result != IParser.FAILED) {
             // Если результат сопоставления успешен и поглощен весь вход, то разбор успешен.
-            if (current.offset == input.length()) {
-                return result;
+            if (!available(current.offset + 1)) {
+                flush();
+                return resolve(result);
             }
             // Если после сопоставления остались неразобранные данные, то сообщаем,
             // что ожидается конец разбираемых данных, а затем сформируем исключение.
-            if (current.offset < input.length()) {
-                fail(EOF);
+            fail(Expected.EOF);
+        }
+        throw failure();
+    }
+    /**
+     * Завершает разбор так же, как {@link #finalize}, но не выбрасывает исключение при неудаче.
+     * @param result Результат разбора стартового правила.
+     * @return Результат успешного разбора или описание ошибки.
+     */
+    @SuppressWarnings("unchecked")
+    protected final <R> ParseResult<R> complete(Object result) {
+        publish();
+        if (result != IParser.FAILED) {
+            if (!available(current.offset + 1)) {
+                flush();
+                return ParseResult.success((R)resolve(result));
             }
+            fail(Expected.EOF);
         }
-        final Location location = new Location(pos, pos);
-        throw new SyntaxError(null, candidates, location, found(location));
+        final Position at = pos.clone();
+        final Location location = new Location(at, at);
+        return ParseResult.failure(candidates, location, found(location));
     }
     protected List<?> newArray(Object... elements) {
+        if (defer) {
+            return new Values(elements);
+        }
         return new ArrayList<>(Arrays.asList(elements));
     }
     //</editor-fold>
 
+    /**
+     * Проверяет, доступны ли символы разбираемой последовательности до указанного смещения,
+     * при необходимости дочитывая их из потока.
+     * @param end Смещение, до которого (не включая) должны быть доступны данные.
+     * @return `true`, если символы до смещения {@code end} есть в разбираемой последовательности.
+     */
+    private boolean available(int end) {
+        if (end > reach) {
+            reach = end;
+        }
+        if (end <= inputLength) return true;
+        if (stream == null) return false;
+
+        // Данные перед самой ранней позицией, к которой еще может вернуться разбор, и перед текстом
+        // еще не выполненных отложенных действий больше не нужны, кроме позиции, в которой будет
+        // сообщено об ошибке. Пока генерируемый код не сообщает о
+        // таких позициях, сохраняем все данные.
+        int keep = 0;
+        if (tracksBacktracking()) {
+            keep = Math.min(Math.min(current.offset, pos.offset), deferred);
+            for (int i = 0; i < pinned; ++i) {
+                keep = Math.min(keep, pins[i]);
+            }
+            // Если разбор остановился между суррогатами, второй из них декодируется по началу
+            // символа, которое на 2 байта раньше.
+            if (utf8) {
+                keep = Math.max(0, keep - 2);
+            }
+            // Номера строк для отбрасываемых данных нужно вычислить, пока они еще доступны.
+            if (lines != null) {
+                lines.scan(keep);
+            }
+        }
+        final boolean result = stream.fill(end, keep);
+        inputLength = stream.length();
+        return result;
+    }
+    private void record(int kind, int start, int end) {
+        final int i = (recorded - flushed) * 3;
+        if (i == events.length) {
+            events = Arrays.copyOf(events, i * 2);
+            if (actions != null) {
+                actions = Arrays.copyOf(actions, i * 2 / 3);
+            }
+        }
+        events[i]     = kind;
+        events[i + 1] = start;
+        events[i + 2] = end;
+        ++recorded;
+    }
+    private Object defer(Deferred action) {
+        if (actions == null) {
+            actions = new Object[events.length / 3];
+        }
+        record(DEFER, action.start, action.end);
+        if (action.start < deferred) {
+            deferred = action.start;
+        }
+        actions[recorded - flushed - 1] = action;
+        return action;
+    }
+    /**
+     * Возвращает индекс первого счетчика правила в {@link #counters}, при необходимости
+     * создавая счетчики.
+     */
+    private int counter(int rule) {
+        if (counters == null) {
+            counters = new long[stats().size()];
+        }
+        return rule * ParseStats.FIELDS;
+    }
+    /** Прибавляет счетчики профилирования этого парсера к общей статистике. */
+    private void publish() {
+        if (counters != null) {
+            stats().add(counters);
+        }
+    }
+    /**
+     * Передает слушателю все события на ленте и выполняет отложенные действия. После этого
+     * они уже не могут быть отменены.
+     */
+    private void flush() {
+        final int count = (recorded - flushed) * 3;
+        for (int i = 0; i < count; i += 3) {
+            final int kind = events[i];
+            switch (kind & 3) {
+                case ENTER: listener.enterRule(ruleName(kind >>> 2), events[i + 1]); break;
+                case EXIT:  listener.exitRule(ruleName(kind >>> 2), events[i + 1]);  break;
+                case TOKEN: listener.token(input, events[i + 1], events[i + 2]);    break;
+                default: {
+                    final Deferred action = (Deferred)actions[i / 3];
+                    actions[i / 3] = null;
+                    run(action);
+                }
+            }
+        }
+        flushed = recorded;
+        deferred = Integer.MAX_VALUE;
+    }
+    /**
+     * Заменяет отложенные результаты действий их значениями, выполняя действия, которые еще
+     * не выполнены, в том числе внутри списков результатов последовательностей и повторений.
+     */
+    private Object resolve(Object value) {
+        if (value instanceof Deferred) {
+            final Deferred action = (Deferred)value;
+            run(action);
+            return action.value;
+        }
+        if (value instanceof Values) {
+            final Values values = (Values)value;
+            if (!values.resolved) {
+                values.resolved = true;
+                for (int i = 0; i < values.size(); ++i) {
+                    values.set(i, resolve(values.get(i)));
+                }
+            }
+        }
+        return value;
+    }
+    /**
+     * Выполняет отложенное действие, если оно еще не выполнено, в позиции его сопоставления,
+     * чтобы оно имело доступ к своим {@link #location() границам} и {@link #text() тексту}.
+     */
+    private void run(Deferred action) {
+        if (action.done) return;
+
+        final Object[] args = action.args;
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = resolve(args[i]);
+            }
+        }
+        final Position savedCurrent = current;
+        final Position savedMark = mark;
+        final int savedOffset = current.offset;
+        final int savedMarkOffset = markOffset;
+        if (lines != null) {
+            markOffset = action.start;
+            current.offset = action.end;
+        } else {
+            mark = action.from;
+            current = action.to;
+        }
+        try {
+            action.value = perform(action.action, args);
+        } finally {
+            current = savedCurrent;
+            current.offset = savedOffset;
+            mark = savedMark;
+            markOffset = savedMarkOffset;
+        }
+        action.done = true;
+        action.args = null;
+    }
+    /** Формирует синтаксическую ошибку в позиции, дальше которой разбор продвинуться не смог. */
+    private SyntaxError failure() {
+        publish();
+        final Position at = pos.clone();
+        final Location location = new Location(at, at);
+        return new SyntaxError(null, candidates, location, found(location), errorStackTraces());
+    }
     private Character found(Location location) {
-        final int offset = location.start().offset();
-        return offset < input.length() ? input.charAt(offset) : null;
+        final int offset = location.start().offset;
+        if (!available(offset + 1)) {
+            return null;
+        }
+        final char ch = input.charAt(offset);
+        return ch < 0x80 || !utf8 ? ch : (char)unit(offset);
+    }
+    /**
+     * Возвращает часть разбираемой последовательности между указанными смещениями. В режиме
+     * {@link #utf8() разбора UTF-8} байты декодируются, если среди них есть не ASCII символы.
+     */
+    private CharSequence slice(int from, int to) {
+        if (utf8) {
+            for (int i = from; i < to; ++i) {
+                if (input.charAt(i) >= 0x80) {
+                    final byte[] bytes = new byte[to - from];
+                    for (int j = 0; j < bytes.length; ++j) {
+                        bytes[j] = (byte)input.charAt(from + j);
+                    }
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return input.subSequence(from, to);
+    }
+    /**
+     * Декодирует символ в кодировке UTF-8, начинающийся с указанного смещения. Первый байт
+     * должен быть доступен. Некорректные последовательности декодируются как {@link #MALFORMED}.
+     * @return Длина символа в байтах, сдвинутая на 24 бита влево, объединенная с кодом символа.
+     */
+    private int decode(int offset) {
+        final int b0 = input.charAt(offset);
+        final int length;
+        int cp;
+        if (b0 < 0x80) return (1 << 24) | b0;
+        if (b0 >= 0xC2 && b0 <= 0xDF) { length = 2; cp = b0 & 0x1F; } else
+        if (b0 >= 0xE0 && b0 <= 0xEF) { length = 3; cp = b0 & 0x0F; } else
+        if (b0 >= 0xF0 && b0 <= 0xF4) { length = 4; cp = b0 & 0x07; } else {
+            return MALFORMED;
+        }
+        if (!available(offset + length)) {
+            return MALFORMED;
+        }
+        for (int i = 1; i < length; ++i) {
+            final int b = input.charAt(offset + i);
+            if ((b & 0xC0) != 0x80) {
+                return MALFORMED;
+            }
+            cp = (cp << 6) | (b & 0x3F);
+        }
+        // Избыточные представления, суррогаты и символы за пределами Unicode
+        if (length == 3 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF))
+         || length == 4 && (cp < 0x10000 || cp > 0x10FFFF)) {
+            return MALFORMED;
+        }
+        return (length << 24) | cp;
+    }
+    /**
+     * Декодирует символ UTF-16, начинающийся с указанного смещения. Символ вне базовой плоскости
+     * Unicode декодируется как два суррогата по 2 байта: первый -- с начала его последовательности
+     * байт, второй -- с ее середины, в которой останавливается разбор после первого суррогата.
+     * @return Длина символа в байтах, сдвинутая на 24 бита влево, объединенная с кодом символа.
+     */
+    private int unit(int offset) {
+        final int b = input.charAt(offset);
+        if (b >= 0x80 && b < 0xC0 && offset >= 2) {
+            // Байт продолжения может начинать символ, только если это второй суррогат
+            final int decoded = decode(offset - 2);
+            if (decoded >>> 24 == 4) {
+                return (2 << 24) | Character.lowSurrogate(decoded & 0xFFFFFF);
+            }
+        }
+        final int decoded = decode(offset);
+        if (decoded >>> 24 == 4) {
+            return (2 << 24) | Character.highSurrogate(decoded & 0xFFFFFF);
+        }
+        return decoded;
+    }
+    /** Поглощает символ, декодированный {@link #unit}, и возвращает его как Character. */
+    private Character next(int decoded) {
+        current.next(input, current.offset + (decoded >>> 24));
+        return (char)decoded;
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import org.pegjs.java.exceptions.InputException;
+
+/**
+ * Представляет поток символов как последовательность символов, читая его по мере необходимости
+ * в окно, которое может сдвигаться вперед. Данные, предшествующие самой ранней позиции, к которой
+ * разбор еще может вернуться, при очередном чтении отбрасываются, поэтому объем занимаемой памяти
+ * определяется глубиной возвратов в грамматике, а не размером потока.
+ * <p>
+ * Индексы последовательности абсолютные, т.е. отсчитываются от начала потока. Обращение к
+ * уже отброшенным данным приводит к исключению {@link IllegalStateException}.
+ *
+ * @author Mingun
+ */
+final class StreamCharSequence implements CharSequence {
+    /** Начальный размер окна в символах. */
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private final Reader reader;
+    /** Окно с прочитанными, но еще не отброшенными данными. */
+    private char[] buffer = new char[INITIAL_CAPACITY];
+    /** Смещение от начала потока символа, находящегося в начале окна. */
+    private int base;
+    /** Количество прочитанных символов в окне. */
+    private int limit;
+    /** Признак того, что поток прочитан до конца. */
+    private boolean eof;
+
+    StreamCharSequence(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Дочитывает поток так, чтобы стали доступны символы до указанного смещения, отбрасывая
+     * при необходимости данные перед смещением {@code keep}.
+     *
+     * @param end Смещение от начала потока, до которого (не включая) нужно прочитать данные.
+     * @param keep Смещение от начала потока, начиная с которого данные нужно сохранить.
+     * @return `true`, если символы до смещения {@code end} доступны, `false`, если поток
+     *         закончился раньше.
+     * @throws InputException Если при чтении потока произошла ошибка ввода-вывода.
+     */
+    boolean fill(int end, int keep) {
+        while (base + limit < end && !eof) {
+            if (limit == buffer.length) {
+                compact(keep);
+            }
+            try {
+                final int read = reader.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    limit += read;
+                }
+            } catch (IOException ex) {
+                throw new InputException("Can't read input at offset "+(base + limit), ex);
+            }
+        }
+        return end <= base + limit;
+    }
+    /** Отбрасывает данные перед смещением {@code keep}, а если места все равно нет, расширяет окно. */
+    private void compact(int keep) {
+        final int drop = Math.min(Math.max(keep - base, 0), limit);
+        if (drop > 0) {
+            System.arraycopy(buffer, drop, buffer, 0, limit - drop);
+            base  += drop;
+            limit -= drop;
+        }
+        // Если освободилось меньше половины окна, увеличиваем его, чтобы не сдвигать
+        // данные на каждом чтении.
+        if (limit > buffer.length / 2) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+    }
+
+    /**
+     * Возвращает количество символов, прочитанных из потока к настоящему моменту. После того,
+     * как поток прочитан до конца, это его полная длина.
+     */
+    @Override
+    public int length() { return base + limit; }
+    @Override
+    public char charAt(int index) {
+        return buffer[check(index)];
+    }
+    /**
+     * Возвращает копию указанной части потока, поэтому результат остается корректным
+     * после того, как данные будут отброшены из окна.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start > end) {
+            throw new IndexOutOfBoundsException("start > end: "+start+" > "+end);
+        }
+        final int from = check(start);
+        if (end > base + limit) {
+            throw new IndexOutOfBoundsException("Bounds: ["+base+"; "+(base + limit)+"], end="+end);
+        }
+        return new String(buffer, from, end - start);
+    }
+    /** Возвращает содержимое текущего окна. */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, limit);
+    }
+
+    /** Преобразует смещение от начала потока в индекс в окне. */
+    private int check(int index) {
+        if (index < base) {
+            throw new IllegalStateException("Data at offset "+index+" already discarded, first available offset is "+base);
+        }
+        if (index >= base + limit) {
+            throw new IndexOutOfBoundsException("Bounds: ["+base+"; "+(base + limit)+"), index="+index);
+        }
+        return index - base;
+    }
+}
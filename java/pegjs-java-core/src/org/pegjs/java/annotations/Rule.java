@@ -49,4 +49,20 @@ public @interface Rule {
      * @return `true`, если разбор можно начать с указанного правила, иначе `false`.
      */
     public boolean isStart();
+    /**
+     * Определяет, запоминаются ли результаты разбора этого правила (packrat-режим). Результаты
+     * запоминаются для всех правил, если парсер сгенерирован с опцией {@code memoize: "all"}, или
+     * только для правил, помеченных в грамматике аннотацией {@code @Memoize}, если парсер
+     * сгенерирован с опцией {@code memoize: "marked"}.
+     * @return `true`, если повторный разбор правила в той же позиции берет результат из таблицы
+     *         запомненных результатов, иначе `false`.
+     */
+    public boolean memoize() default false;
+    /**
+     * Определяет, фиксирует ли успешный разбор этого правила разбор (правило помечено в
+     * грамматике аннотацией {@code @Cut}). После фиксации разбор не возвращается к данным
+     * перед ней, а ошибка разбора сообщается сразу.
+     * @return `true`, если после успешного разбора правила вызывается {@code commit()}.
+     */
+    public boolean cut() default false;
 }
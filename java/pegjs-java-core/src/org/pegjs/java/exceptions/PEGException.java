@@ -35,4 +35,7 @@ public class PEGException extends RuntimeException {
     public PEGException(String message) { super(message); }
     public PEGException(Throwable cause) { super(cause); }
     public PEGException(String message, Throwable cause) { super(message, cause); }
+    protected PEGException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
 }
@@ -1,6 +1,7 @@
 
 package org.pegjs.java.exceptions;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -13,14 +14,23 @@ import org.pegjs.java.Location;
  * Кидается при обнаружении синтаксических ошибок в разбираемой последовательности.
  * Содержит отсортированное множество ожидаемых элементов грамматики, позицию, в которой
  * обнаружена ошибка, и символ из разбираемой последовательности, который вызвал ошибку.
+ * <p>
+ * Множество ожидаемых элементов и сообщение об ошибке формируются при первом обращении к
+ * ним, поэтому ошибка, которую только проверили или перехватили, не тратит время на их
+ * сортировку и форматирование.
  *
  * @author Mingun
  */
 public class SyntaxError extends PEGException {
     private static final long serialVersionUID = -752047789955231813L;
+    private static final Expected[] NONE = new Expected[0];
 
-    /** Множество ожидаемых элементов грамматики в позиции возникновения ошибки. Немодифицируемое множество. */
-    public final SortedSet<Expected> candidates;
+    /** Ожидаемые элементы в порядке записи, до сортировки. */
+    private final Expected[] expected;
+    /** Множество ожидаемых элементов, созданное при первом обращении. Немодифицируемое множество. */
+    private SortedSet<Expected> candidates;
+    /** Сообщение об ошибке, сформированное при первом обращении, если не было задано явно. */
+    private String message;
     /** Позиция, в которой обнаружена ошибка. */
     public final Location location;
     /** Встретившийся символ или {@code null}, в случае достижения конца данных. */
@@ -30,12 +40,32 @@ public class SyntaxError extends PEGException {
      * 
      * @param message Сообщение об ошибке. Если равно {@code NULL}, то будет сформировано автоматически
      *        на основе списка кандидатов.
-     * @param candidates Список ожидаемых символов или имен правил.
+     * @param candidates Список ожидаемых символов или имен правил, возможно, с повторами.
+     *        Список копируется, поэтому может изменяться после создания исключения.
      * @param location Позиция в разбираемой строке, в которой возникло исключение.
      * @param found Текущий символ или {@code null} в случае {@code EOF}.
      */
     public SyntaxError(String message, List<Expected> candidates, Location location, Character found) {
-        this(message, candidates == null ? null : new TreeSet(candidates), location, found);
+        this(message, candidates, location, found, true);
+    }
+    /**
+     * 
+     * @param message Сообщение об ошибке. Если равно {@code NULL}, то будет сформировано автоматически
+     *        на основе списка кандидатов.
+     * @param candidates Список ожидаемых символов или имен правил, возможно, с повторами.
+     *        Список копируется, поэтому может изменяться после создания исключения.
+     * @param location Позиция в разбираемой строке, в которой возникло исключение.
+     * @param found Текущий символ или {@code null} в случае {@code EOF}.
+     * @param stackTrace Если {@code false}, стек вызовов не заполняется. Это самая дорогая
+     *        часть создания исключения, поэтому ее стоит избегать, если ошибки разбора
+     *        часты и место их возникновения не интересно.
+     */
+    public SyntaxError(String message, List<Expected> candidates, Location location, Character found, boolean stackTrace) {
+        super(null, null, true, stackTrace);
+        this.expected = candidates == null ? NONE : candidates.toArray(new Expected[candidates.size()]);
+        this.message  = message;
+        this.found    = found;
+        this.location = location;
     }
     /**
      * 
@@ -47,14 +77,47 @@ public class SyntaxError extends PEGException {
      * @param found Текущий символ или {@code null} в случае {@code EOF}.
      */
     public SyntaxError(String message, SortedSet<Expected> candidates, Location location, Character found) {
-        super(message != null ? message : buildMessage(candidates, location, found));
-        this.candidates = Collections.unmodifiableSortedSet(candidates);
+        super(null, null, true, true);
+        this.expected   = NONE;
+        this.candidates = Collections.unmodifiableSortedSet(
+            candidates == null ? new TreeSet<Expected>() : candidates
+        );
+        this.message    = message;
         this.found      = found;
         this.location   = location;
     }
+    /**
+     * Возвращает множество ожидаемых элементов грамматики в позиции возникновения ошибки.
+     * @return Отсортированное немодифицируемое множество, пустое, если ошибка сформирована
+     *         с собственным сообщением.
+     */
+    public SortedSet<Expected> candidates() {
+        if (candidates == null) {
+            candidates = Collections.unmodifiableSortedSet(new TreeSet<>(Arrays.asList(expected)));
+        }
+        return candidates;
+    }
+    @Override
+    public String getMessage() {
+        if (message == null) {
+            message = buildMessage(candidates(), location, found);
+        }
+        return message;
+    }
     private static String buildMessage(SortedSet<Expected> candidates, Location location, Character found) {
         final StringBuilder sb = new StringBuilder();
         sb.append("Line ").append(location.start().line()).append(", column ").append(location.start().column());
+        // Если ожиданий нет (разбор прерван предикатом), сообщаем только о встреченном символе.
+        if (candidates.isEmpty()) {
+            sb.append(": Unexpected ");
+            if (found != null) {
+                sb.append('"').append(stringEscape(found)).append('"');
+            } else {
+                sb.append("end of input");
+            }
+            sb.append(" found.");
+            return sb.toString();
+        }
         sb.append(": Expected ");
 
         int last = candidates.size()-1;
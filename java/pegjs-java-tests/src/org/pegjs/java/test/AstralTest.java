@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.pegjs.java.test.generated.AstralParser;
+import org.pegjs.java.test.generated.StreamingUtf8UnitsParser;
+import org.pegjs.java.test.generated.Utf8AstralParser;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Проверяет, что при разборе UTF-8 символы вне базовой плоскости Unicode сопоставляются с
+ * классами символов и любым символом по одному суррогату, как и при разборе UTF-16.
+ *
+ * @author Mingun
+ */
+public class AstralTest {
+    /** Смайлик, первый символ блока Emoticons, и ракета из другого блока. */
+    private static final String TEXT = "a😀b🚀é";
+    private static final String[] CHARS = {
+        "char a", "emoticon 😀", "char b", "astral 🚀", "char é"
+    };
+
+    private static List<String> strings(Object result) {
+        final List<String> strings = new ArrayList<>();
+        for (Object item : (List<?>)result) {
+            strings.add(item.toString());
+        }
+        return strings;
+    }
+    private static List<String> expected(int count) {
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            for (String s : CHARS) {
+                expected.add(s);
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void utf16() {
+        assertEquals(expected(1), strings(new AstralParser().parse(TEXT)));
+    }
+    /** Пара классов суррогатов и класс с любым символом сопоставляются с одним символом. */
+    @Test
+    public void utf8() {
+        assertEquals(expected(1), strings(new Utf8AstralParser().parse(TEXT)));
+        assertEquals(expected(1), strings(new Utf8AstralParser().parse(TEXT.getBytes(StandardCharsets.UTF_8))));
+    }
+    /**
+     * Разбор, остановившийся между суррогатами, декодирует второй из них по началу символа,
+     * поэтому начало символа не должно отбрасываться при потоковом разборе, даже если разбор
+     * зафиксирован между суррогатами, а затем пробуется литерал, для которого нужно прочитать
+     * данные за символом. Данные читаются по одному байту, чтобы граница прочитанных данных
+     * приходилась на конец символа.
+     */
+    @Test
+    public void streamingUtf8() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            sb.append("🚀");
+            expected.add("\uD83D");
+            expected.add("\uDE80");
+        }
+        final ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        final ReadableByteChannel channel = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!bytes.hasRemaining()) {
+                    return -1;
+                }
+                dst.put(bytes.get());
+                return 1;
+            }
+            @Override
+            public boolean isOpen() { return true; }
+            @Override
+            public void close() {}
+        };
+        assertEquals(expected, strings(new StreamingUtf8UnitsParser().parse(channel, StandardCharsets.UTF_8)));
+    }
+}
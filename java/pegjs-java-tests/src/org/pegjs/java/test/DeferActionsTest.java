@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.io.StringReader;
+import java.util.List;
+import org.junit.Test;
+import org.pegjs.java.IParser;
+import org.pegjs.java.test.generated.CommittedItemsParser;
+import org.pegjs.java.test.generated.DeferredItemsParser;
+import org.pegjs.java.test.generated.ItemsParser;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Проверяет, что парсеры с отложенным выполнением действий дают тот же результат, что и
+ * выполняющие действия сразу, в том числе при потоковом разборе.
+ *
+ * @author Mingun
+ */
+public class DeferActionsTest {
+    /** Данные во много раз больше буфера потокового разбора. */
+    private static final int LENGTH = 100 * 1024;
+
+    private static String items() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < LENGTH; ++i) {
+            sb.append("item").append(i).append(' ');
+        }
+        return sb.toString();
+    }
+    private static void assertSameItems(List<?> expected, List<?> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+    private static void assertSameResult(IParser<?> parser) throws Exception {
+        final String input = items();
+        final List<?> expected = (List<?>)new ItemsParser().parse(input);
+        assertSameItems(expected, (List<?>)parser.parse(input));
+        assertSameItems(expected, (List<?>)parser.parse(new StringReader(input)));
+    }
+
+    /**
+     * Без фиксаций разбора действия выполняются только в конце разбора, поэтому данные
+     * их текста нельзя отбрасывать при чтении следующих.
+     */
+    @Test
+    public void streamingWithoutCommits() throws Exception {
+        assertSameResult(new DeferredItemsParser());
+    }
+    /** Действия выполняются при фиксации разбора после каждого слова. */
+    @Test
+    public void streamingWithCommits() throws Exception {
+        assertSameResult(new CommittedItemsParser());
+    }
+}
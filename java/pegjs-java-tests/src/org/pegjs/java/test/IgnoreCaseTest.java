@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.pegjs.java.IParser;
+import org.pegjs.java.test.generated.IgnoreCaseNoFirstSetsParser;
+import org.pegjs.java.test.generated.IgnoreCaseParser;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Проверяет, что выбор альтернатив по множествам FIRST не пропускает альтернативы, которые
+ * сопоставились бы без учета регистра, если преобразования регистра символов не взаимно обратны.
+ *
+ * @author Mingun
+ */
+public class IgnoreCaseTest {
+    private static void assertItems(IParser<?> parser, String input, String... expected) {
+        assertEquals(Arrays.asList(expected), (List<?>)parser.parse(input));
+    }
+    private static void assertItems(String input, String... expected) {
+        assertItems(new IgnoreCaseParser(), input, expected);
+        assertItems(new IgnoreCaseNoFirstSetsParser(), input, expected);
+    }
+
+    /** Литерал "\u212A"i совпадает с k и K, хотя сам знак Кельвина -- свой верхний регистр. */
+    @Test
+    public void kelvinSign() {
+        assertItems("\u212A!k!K!", "kelvin", "kelvin", "kelvin");
+    }
+    /** Класс [\u017F]i совпадает с s и S, хотя нижний регистр S -- s, а не длинная s. */
+    @Test
+    public void longS() {
+        assertItems("\u017F?s?S?", "long s", "long s", "long s");
+    }
+    @Test
+    public void mixed() {
+        assertItems("s?k!\u017F?K!", "long s", "kelvin", "long s", "kelvin");
+    }
+}
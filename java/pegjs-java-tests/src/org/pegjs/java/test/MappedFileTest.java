@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pegjs.java.Location;
+import org.pegjs.java.RecordParser;
+import org.pegjs.java.test.generated.LinesParser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Проверяет разбор записей файлов, отображенных в память, в том числе больше 2 Гб.
+ *
+ * @author Mingun
+ */
+public class MappedFileTest {
+    /**
+     * Длина строк из нулевых байт в большом файле: три таких строки в сумме больше 2 Гб, но
+     * каждая помещается в участок.
+     */
+    private static final int HOLE = 750 * 1024 * 1024;
+
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    private static List<Object> parse(File file, ForkJoinPool pool) throws IOException {
+        final RecordParser<Object> parser = LinesParser.LINE_RECORDS;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return pool == null ? parser.parse(ch) : parser.parse(ch, pool);
+        }
+    }
+    private static void assertLocation(long offset, int line, int column, Object actual) {
+        final Location location = (Location)actual;
+        assertEquals(offset, location.start().offset());
+        assertEquals(line,   location.start().line());
+        assertEquals(column, location.start().column());
+    }
+
+    /** Файл меньше 2 Гб разбирается так же, как строка с тем же содержимым. */
+    @Test
+    public void smallFile() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; ++i) {
+            sb.append("record ").append(i).append('\n');
+        }
+        final File file = File.createTempFile("records", ".txt");
+        try {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+            final List<Object> expected = LinesParser.LINE_RECORDS.parse(sb);
+            for (List<Object> actual : Arrays.asList(parse(file, null), parse(file, pool))) {
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i) {
+                    final Location location = (Location)expected.get(i);
+                    assertLocation(location.start().offset(), location.start().line(), location.start().column(), actual.get(i));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    /**
+     * Файл больше 2 Гб разбирается окнами, смещения в которых отсчитываются от начала файла.
+     * Строки из нулевых байт не занимают места на диске, если файловая система поддерживает
+     * разреженные файлы.
+     */
+    @Test
+    public void largeFile() throws IOException {
+        final File file = File.createTempFile("records", ".txt");
+        try {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                for (int i = 0; i < 3; ++i) {
+                    f.write(("record " + i + "\n").getBytes(StandardCharsets.US_ASCII));
+                    f.seek(f.getFilePointer() + HOLE);
+                    f.write('\n');
+                }
+                f.write("last\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            final long size = file.length();
+            assertTrue(size > Integer.MAX_VALUE);
+
+            for (List<Object> records : Arrays.asList(parse(file, null), parse(file, pool))) {
+                assertEquals(7, records.size());
+                for (int i = 0; i < 3; ++i) {
+                    assertLocation(i * (HOLE + 10L), 2 * i + 1, 1, records.get(2 * i));
+                    assertLocation(i * (HOLE + 10L) + 9, 2 * i + 2, 1, records.get(2 * i + 1));
+                }
+                assertLocation(size - 5, 7, 1, records.get(6));
+                assertEquals(size, ((Location)records.get(6)).end().offset());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
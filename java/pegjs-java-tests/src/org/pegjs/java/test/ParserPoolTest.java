@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pegjs.java.ParseResult;
+import org.pegjs.java.test.generated.NumbersParser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Проверяет пакетный разбор пулом парсеров.
+ *
+ * @author Mingun
+ */
+public class ParserPoolTest {
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+    @AfterClass
+    public static void shutdownExecutor() {
+        executor.shutdown();
+    }
+
+    /**
+     * Исключение в действии при разборе одной последовательности становится ее неудачным
+     * результатом и не мешает получить результаты остальных.
+     */
+    @Test
+    public void exceptionIsPerEntry() {
+        final List<String> inputs = Arrays.asList("1 2", "99999999999", "x", "3");
+        for (int i = 0; i < 100; ++i) {
+            final List<ParseResult<List<Object>>> results = NumbersParser.POOL.parseAll(inputs, executor);
+            assertEquals(inputs.size(), results.size());
+
+            assertEquals(Arrays.<Object>asList(1, 2), results.get(0).value());
+
+            final ParseResult<List<Object>> overflow = results.get(1);
+            assertFalse(overflow.isSuccess());
+            assertNull(overflow.error());
+            assertTrue(overflow.exception() instanceof NumberFormatException);
+            try {
+                overflow.value();
+                fail("value() must rethrow the exception");
+            } catch (NumberFormatException ex) {
+                assertEquals(overflow.exception(), ex);
+            }
+
+            final ParseResult<List<Object>> syntax = results.get(2);
+            assertFalse(syntax.isSuccess());
+            assertNull(syntax.exception());
+            assertEquals(0, syntax.location().start().offset());
+
+            assertEquals(Arrays.<Object>asList(3), results.get(3).value());
+        }
+    }
+}
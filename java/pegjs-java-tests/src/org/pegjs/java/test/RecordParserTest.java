@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mingun.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.pegjs.java.test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pegjs.java.Location;
+import org.pegjs.java.Position;
+import org.pegjs.java.RecordParser;
+import org.pegjs.java.exceptions.SyntaxError;
+import org.pegjs.java.test.generated.ContinuationsParser;
+import org.pegjs.java.test.generated.LinesParser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Проверяет, что параллельный разбор записей сгенерированными парсерами дает тот же результат
+ * или ту же ошибку, что и последовательный, при любом разбиении данных на участки.
+ *
+ * @author Mingun
+ */
+public class RecordParserTest {
+    /** Данные больше минимального размера участка, чтобы они разбивались на несколько участков. */
+    private static final int LINES = 100000;
+
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    /** Формирует данные, в которых за каждой {@code every}-й строкой следует строка продолжения. */
+    private static String lines(int every) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; ++i) {
+            sb.append("record ").append(i).append('\n');
+            if (every > 0 && i % every == 0) {
+                sb.append(" continuation ").append(i).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+    private static void assertSamePosition(Position expected, Position actual) {
+        assertEquals(expected.offset(), actual.offset());
+        assertEquals(expected.line(),   actual.line());
+        assertEquals(expected.column(), actual.column());
+    }
+    /**
+     * Сравнивает положения записей. Смещения, строки и столбцы записей участков после первого
+     * должны отсчитываться от начала всех данных, а не участка.
+     */
+    private static void assertSameResult(RecordParser<Object> parser, String input) {
+        final List<Object> sequential = parser.parse(input);
+        final List<Object> parallel = parser.parse(input, pool);
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); ++i) {
+            final Location expected = (Location)sequential.get(i);
+            final Location actual = (Location)parallel.get(i);
+            assertSamePosition(expected.start(), actual.start());
+            assertSamePosition(expected.end(), actual.end());
+        }
+    }
+    private static void assertSameError(RecordParser<Object> parser, String input) {
+        SyntaxError expected = null;
+        try {
+            parser.parse(input);
+            fail("Sequential parse must fail");
+        } catch (SyntaxError ex) {
+            expected = ex;
+        }
+        try {
+            parser.parse(input, pool);
+            fail("Parallel parse must fail");
+        } catch (SyntaxError ex) {
+            assertEquals(expected.getMessage(), ex.getMessage());
+            assertSamePosition(expected.location.start(), ex.location.start());
+        }
+    }
+
+    /** Записи не заглядывают за разделитель, поэтому данные не разбираются повторно. */
+    @Test
+    public void independentRecords() {
+        final RecordParser<Object> parser = LinesParser.LINE_RECORDS;
+        final String input = lines(0);
+        final long fallbacks = parser.fallbacks();
+        assertSameResult(parser, input);
+        assertEquals(fallbacks, parser.fallbacks());
+        assertEquals(LINES, parser.parse(input, pool).size());
+    }
+    /**
+     * Запись может продолжиться в следующем участке, поэтому данные разбираются последовательно,
+     * а строка продолжения сразу за границей участка не становится отдельной записью.
+     */
+    @Test
+    public void recordsWithContinuations() {
+        final RecordParser<Object> parser = ContinuationsParser.RECORD_RECORDS;
+        for (int every : new int[] {0, 1, 3, 1000}) {
+            final String input = lines(every);
+            final long fallbacks = parser.fallbacks();
+            assertSameResult(parser, input);
+            assertTrue(parser.fallbacks() > fallbacks);
+            assertEquals(LINES, parser.parse(input, pool).size());
+        }
+    }
+    /** Последняя строка без перевода строки -- ошибка в последнем участке. */
+    @Test
+    public void errorAtTheEnd() {
+        final String input = lines(0);
+        assertSameError(LinesParser.LINE_RECORDS, input.substring(0, input.length() - 1));
+        assertSameError(ContinuationsParser.RECORD_RECORDS, input.substring(0, input.length() - 1));
+    }
+}
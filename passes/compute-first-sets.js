@@ -0,0 +1,99 @@
+'use strict';
+
+var asts    = require('pegjs/lib/compiler/asts');
+var visitor = require('pegjs/lib/compiler/visitor');
+
+var CharSet = require('../utils/CharSet');
+
+/// Вычисляет для каждой альтернативы каждого узла `choice` множество FIRST -- множество символов,
+/// с которых может начинаться сопоставившийся альтернативе текст. Результат сохраняется в свойстве
+/// `firstSet` узла альтернативы и имеет вид `{ ranges: [...], reports: [...] }`, где `ranges` --
+/// множество символов в формате utils/CharSet, а `reports` -- список узлов грамматики (литералов,
+/// классов символов и именованных выражений), ожидания которых будут записаны, если альтернатива
+/// не сопоставится с первым же символом. Если множество вычислить нельзя (альтернатива может
+/// сопоставиться с пустой строкой, начинается с предиката и т.п.), свойство равно `null`.
+///
+/// Генератор использует эти данные, чтобы не пробовать альтернативы, которые заведомо не могут
+/// начаться с текущего символа, записывая вместо этого те же ожидания, что и при их разборе.
+function computeFirstSets(ast) {
+  /// Множества правил. `undefined` -- еще не вычислялось, `false` -- вычисляется в данный момент.
+  var rules = {};
+
+  function unknown() { return null; }
+  function delegate(node) { return first(node.expression); }
+
+  var first = visitor.build({
+    rule: function(node) {
+      var result = rules[node.name];
+      if (result === undefined) {
+        rules[node.name] = false;// Защита от бесконечной рекурсии
+        result = rules[node.name] = first(node.expression);
+      }
+      return result || null;
+    },
+    named: function(node) {
+      // Внутри именованного выражения ожидания не записываются, вместо них записывается
+      // ожидание самого выражения.
+      var r = first(node.expression);
+      return r && { ranges: r.ranges, reports: [node] };
+    },
+    choice: function(node) {
+      var result = { ranges: [], reports: [] };
+      for (var i = 0; i < node.alternatives.length; ++i) {
+        var r = first(node.alternatives[i]);
+        if (!r) {
+          return null;
+        }
+        result.ranges  = CharSet.union(result.ranges, r.ranges);
+        result.reports = result.reports.concat(r.reports);
+      }
+      return result;
+    },
+    sequence: function(node) {
+      // Пустые множества возвращаются только для выражений, которые не могут сопоставиться с
+      // пустой строкой, поэтому FIRST последовательности совпадает с FIRST первого элемента.
+      return node.elements.length > 0 ? first(node.elements[0]) : null;
+    },
+    action:       delegate,
+    labeled:      delegate,
+    text:         delegate,
+    one_or_more:  delegate,
+    range: function(node) {
+      return node.min.constant && node.min.value > 0 ? first(node.expression) : null;
+    },
+    optional:     unknown,
+    zero_or_more: unknown,
+    simple_and:   unknown,
+    simple_not:   unknown,
+    semantic_and: unknown,
+    semantic_not: unknown,
+    rule_ref: function(node) {
+      return first(asts.findRule(ast, node.name));
+    },
+    literal: function(node) {
+      return node.value.length > 0
+        ? { ranges: CharSet.fromChar(node.value.charAt(0), node.ignoreCase), reports: [node] }
+        : null;
+    },
+    "class": function(node) {
+      var ranges = CharSet.fromClass(node);
+      return { ranges: node.inverted ? CharSet.invert(ranges) : ranges, reports: [node] };
+    },
+    // Любой символ может не сопоставиться только в конце входа, поэтому проверка первого
+    // символа для него ничего не дает.
+    any: unknown,
+  });
+
+  var annotate = visitor.build({
+    choice: function(node) {
+      node.alternatives.forEach(function(n) {
+        n.firstSet = first(n);
+        annotate(n);
+      });
+    },
+  });
+
+  annotate(ast);
+}
+
+module.exports = computeFirstSets;
@@ -9,14 +9,20 @@ var makeRuleBuilder = require('../utils/RuleBuilder');
 var CodeBuilder     = require('../utils/CodeBuilder');
 var ucb             = require('../utils/UserCodeBuilder');
 var makeBoxed       = require('../utils/Boxed');
+var CharSet         = require('../utils/CharSet');
 
 /// @type String: Строка с именем типа для генерируемых констант
 /// @prefix String: Строка с префиксом переменных для генерируемых констант
 /// @stringify Function: Опциональная функция для преобразования добавляемых через метод add
 ///            объектов в строки, которыми инициализируются константы.
-function makeConstantBuilder(type, prefix, stringify) {
+/// @define Function: Опциональная функция, получающая строку и номер константы и возвращающая
+///         выражение, которым она инициализируется. Позволяет включить номер в значение, не
+///         мешая поиску одинаковых констант.
+function makeConstantBuilder(type, prefix, stringify, define) {
   function n1(i) { return prefix + i; }
-  function n2(v, i) { return 'private static final ' + type + ' ' + n1(i) + ' = ' + v + ';'; }
+  function n2(v, i) {
+    return 'private static final ' + type + ' ' + n1(i) + ' = ' + (define ? define(v, i) : v) + ';';
+  }
 
   var storage = [];
   return {
@@ -55,6 +61,25 @@ function regexEscape(s) {
     ;
 }
 
+/// Приводит каждый символ строки к верхнему регистру так же, как Character.toUpperCase в java:
+/// символы, которые в верхнем регистре представляются несколькими символами, не изменяются.
+function upperCase(s) {
+  return s.replace(/[\s\S]/g, function(ch) {
+    var u = ch.toUpperCase();
+    return u.length === 1 ? u : ch;
+  });
+}
+/// Кодирует строку в UTF-8, представляя каждый байт символом с тем же кодом.
+function utf8Bytes(s) {
+  return Array.from(Buffer.from(s, 'utf8'), b => String.fromCharCode(b)).join('');
+}
+/// Заменяет каждый символ `c` строки на `Character.toLowerCase(Character.toUpperCase(c))`.
+function foldCase(s) {
+  return upperCase(s).replace(/[\s\S]/g, function(ch) {
+    var l = ch.toLowerCase();
+    return l.length === 1 ? l : ch;
+  });
+}
 function toUpperSnakeCase(s) {
   return s.replace(/\.?([A-Z]+)/g, x => '_' + x.toLowerCase()).replace(/^_/, '').toUpperCase();
 }
@@ -76,7 +101,83 @@ function generateJavaCode(ast, options) {
     package: 'org.pegjs.parser.generated',
     className: 'Parser',
     useFullNames: false,
+    // Режим запоминания результатов разбора правил (packrat): "none" -- не запоминать,
+    // "all" -- запоминать для всех правил, "marked" -- только для правил с аннотацией @Memoize.
+    memoize: 'none',
+    // Если `true`, номера строк и столбцов не отслеживаются при разборе, а вычисляются
+    // только при обращении к ним (в сообщениях об ошибках и вызовах location()).
+    lazyLines: false,
+    // Если `true`, перед разбором альтернативы выбора проверяется, может ли она начаться с
+    // текущего символа (по множеству FIRST), и заведомо неподходящие альтернативы не пробуются.
+    firstSets: true,
+    // Если `true`, парсер генерируется для разбора потоков: позиции, к которым разбор может
+    // вернуться, сообщаются парсеру, и прочитанные данные перед ними отбрасываются. Включает
+    // ленивое отслеживание строк (`lazyLines`).
+    streaming: false,
+    // Если `true`, парсер разбирает непосредственно байты текста в кодировке UTF-8: литералы
+    // и символы ASCII сравниваются с байтами без декодирования, смещения отсчитываются в байтах.
+    // Символы вне базовой плоскости сопоставляются с классами и `.` по одному суррогату, как и
+    // при разборе символов UTF-16.
+    utf8: false,
+    // Если `true`, разбор сначала выполняется без сбора ожидаемых элементов, а при неудаче
+    // повторяется со сбором, чтобы сформировать сообщение об ошибке. Ускоряет разбор корректных
+    // данных, но действия и предикаты при разборе некорректных данных выполняются дважды.
+    twoPassErrors: false,
+    // Если `false`, исключения SyntaxError при неудачном разборе создаются без заполнения стека
+    // вызовов. Ускоряет разбор, если значительная часть данных некорректна.
+    errorStackTraces: true,
+    // Если `true`, повторения одиночного символа (класса символов или any) возвращают текст
+    // (CharSequence) вместо списка символов, а символы при их разборе не упаковываются.
+    charRuns: false,
+    // Если `true`, текст ($) над выражениями только из литералов, классов символов, any,
+    // последовательностей, выборов, простых предикатов и повторений разбирается одним циклом
+    // без создания промежуточных результатов.
+    scanLoops: true,
+    // Если `true`, парсер сообщает слушателю (org.pegjs.java.ParseListener) о начале и конце
+    // разбора правил и о токенах, отменяя события отвергнутых альтернатив. Результаты выражений,
+    // не используемые действиями, при этом не формируются (вместо них возвращается `null`),
+    // а результаты правил не запоминаются.
+    events: false,
+    // Если `true`, действия выполняются не сразу после сопоставления, а после успешного разбора
+    // (или фиксации разбора правилом с @Cut) и только для альтернатив, от которых разбор не
+    // отказался. Семантические предикаты по-прежнему выполняются сразу. При потоковом разборе
+    // данные текста еще не выполненных действий не отбрасываются до их выполнения.
+    deferActions: false,
+    // Максимальный оценочный размер байт-кода метода разбора правила. Выражения правил, код которых
+    // получается больше, частично выносятся во вспомогательные методы, чтобы метод оставался меньше
+    // предела HotSpot для JIT-компиляции (8000 байт) и предела JVM на размер метода (64 КБ).
+    // 0 отключает разделение.
+    methodBudget: 6000,
+    // Если `true`, парсер подсчитывает для каждого правила количество вызовов, успешных и
+    // неудачных разборов, поглощенных символов и символов, отданных при откатах внутри правила
+    // (org.pegjs.java.ParseStats, доступна через метод `stats()` парсера).
+    profile: false,
+    // Если `true` вместе с `profile`, подсчитывается также время разбора каждого правила.
+    profileTime: false,
   });
+  // Потоковый разбор требует, чтобы позиция однозначно определялась смещением.
+  var lazyLines = java.lazyLines || java.streaming;
+
+  /// Возвращает строки кода, разбирающего стартовое правило и формирующего результат разбора.
+  /// @call Код вызова функции разбора стартового правила.
+  /// @cast Приведение результата к типу стартового правила.
+  /// @self Префикс для вызова методов парсера (`super.` или имя переменной с парсером).
+  /// @tab Строка, которой делается отступ вложенного кода.
+  function finish(call, cast, self, tab, retry, method) {
+    method = method || 'finalize';
+    if (!java.twoPassErrors && !retry) {
+      return ['return ' + cast + self + method + '(' + call + ');'];
+    }
+    // Первый проход выполняется без сбора ожиданий; если он неудачен, разбор повторяется,
+    // чтобы сформировать точное сообщение об ошибке.
+    return [
+      _('Object') + ' r = ' + call + ';',
+      'if (' + self + 'retry(r)) {',
+      tab + 'r = ' + call + ';',
+      '}',
+      'return ' + cast + self + method + '(r);',
+    ];
+  }
 
   var imports = new Imports(
     java.useFullNames,
@@ -84,20 +185,35 @@ function generateJavaCode(ast, options) {
     'java.lang.Override',
     'java.lang.Number',
     'java.lang.String',
-    'java.lang.reflect.InvocationTargetException',
-    'java.lang.reflect.Method',
+    'java.lang.SuppressWarnings',
+    'java.io.IOException',
+    'java.io.Reader',
     'java.nio.ByteBuffer',
+    'java.nio.channels.FileChannel',
+    'java.nio.channels.ReadableByteChannel',
+    'java.nio.charset.Charset',
+    'java.nio.file.Path',
+    'java.nio.file.StandardOpenOption',
     'java.util.List',
-    'java.util.regex.Pattern',
+    'org.pegjs.java.CharClass',
     'org.pegjs.java.IBaseParser',
     'org.pegjs.java.IParser',
+    'org.pegjs.java.ParserPool',
+    'org.pegjs.java.ParseResult',
+    'org.pegjs.java.RecordParser',
     'org.pegjs.java.Expected',
     'org.pegjs.java.Position',
     'org.pegjs.java.State',
     'org.pegjs.java.annotations.Rule',
     'org.pegjs.java.annotations.Grammar',
-    'org.pegjs.java.exceptions.NoSuchRuleException'
+    'org.pegjs.java.exceptions.InputException',
+    'org.pegjs.java.exceptions.NoSuchRuleException',
+    'org.pegjs.java.exceptions.SyntaxError'
   );
+  if (java.profile) {
+    imports.add('java.lang.System');
+    imports.add('org.pegjs.java.ParseStats');
+  }
 
   var prefix = 'parse$';
   /// Возвращает имя функции для разбора правила с указанным именем
@@ -106,20 +222,150 @@ function generateJavaCode(ast, options) {
 
   var boxed = makeBoxed(_);
 
+  /// Возвращает `true`, если результаты разбора указанного правила нужно запоминать.
+  function isMemoized(rule) {
+    // Запомненный результат восстанавливается без событий разбора правила.
+    if (java.events) {
+      return false;
+    }
+    return java.memoize === 'all'
+        || java.memoize === 'marked' && !!asts.findAnnotation(rule, 'Memoize');
+  }
+
+  /// Возвращает `true`, если успешный разбор указанного правила фиксирует разбор.
+  function isCut(rule) {
+    return !!asts.findAnnotation(rule, 'Cut');
+  }
+  /// Возвращает разделитель записей, если правило помечено аннотацией `@Record`, иначе `null`.
+  function recordDelimiter(rule) {
+    var a = asts.findAnnotation(rule, 'Record');
+    if (!a) {
+      return null;
+    }
+    if (a.params.length !== 1 || typeof a.params[0] !== 'string' || a.params[0].length === 0) {
+      options.collector.emitError('@Record annotation requires a non-empty delimiter string', a.location || rule.location);
+      return null;
+    }
+    return a.params[0];
+  }
+  /// Правила, результаты которых можно разбирать параллельно как последовательности записей.
+  var records = ast.rules.filter(function(rule) { return recordDelimiter(rule) !== null; });
+
+  /// Если в грамматике есть фиксирующие правила, откат должен проверять, не зафиксирован ли разбор.
+  var guarded = ast.rules.some(isCut);
+
+  /// Помечает свойством `unused` узлы последовательностей, повторений и текста, результаты которых
+  /// не попадают ни в одну метку: их не используют ни действия, ни предикаты, ни границы повторений.
+  /// В режиме событий такие результаты не формируются. Результаты стартовых правил тоже не нужны,
+  /// т.к. вывод разбора получает слушатель.
+  function markUnused() {
+    /// Имена правил, результаты которых попадают в метки.
+    var used = {};
+    var changed;
+
+    function pass(node, u) { mark(node.expression, u); }
+    function own(node, u) {
+      node.unused = !u;
+      mark(node.expression, u);
+    }
+    function none(node) { mark(node.expression, false); }
+
+    var mark = visitor.build({
+      rule:         function(node) { mark(node.expression, !!used[node.name]); },
+      choice:       function(node, u) { node.alternatives.forEach(function(n) { mark(n, u); }); },
+      sequence:     function(node, u) {
+        node.unused = !u;
+        node.elements.forEach(function(n) { mark(n, u); });
+      },
+      // Действие получает только результаты меток, поэтому результат самого выражения ему не нужен.
+      action:       none,
+      labeled:      function(node) { mark(node.expression, true); },
+      // Текст извлекается по позициям, результат выражения ему не нужен.
+      text:         function(node, u) {
+        node.unused = !u;
+        mark(node.expression, false);
+      },
+      named:        pass,
+      optional:     pass,
+      simple_and:   pass,
+      simple_not:   none,
+      zero_or_more: own,
+      one_or_more:  own,
+      range:        own,
+      rule_ref:     function(node, u) {
+        if (u && !used[node.name]) {
+          used[node.name] = true;
+          changed = true;
+        }
+      },
+    });
+    do {
+      changed = false;
+      mark(ast);
+    } while (changed);
+  }
+  if (java.events) {
+    markUnused();
+  }
+  /// Вызовы действий, выполнение которых отложено (см. `deferActions`), в порядке их номеров.
+  var performs = [];
+  /// Возвращает строки кода, вызывающего действие и помещающего его результат в стек результатов,
+  /// или, если выполнение действий отложено, записывающего вызов на ленту. Освобождает позицию
+  /// начала действия на вершине стека позиций.
+  /// @params Имена формальных параметров действия.
+  /// @args Аргументы действия в формате `VarStack.args`.
+  function callAction(node, builder, params, args) {
+    if (!java.deferActions) {
+      return [
+        builder.locMark(),
+        builder.resultStack.push('uc.' + ucb.addAction(node, params, args))
+      ];
+    }
+    // При выполнении отложенного действия его аргументы берутся из массива.
+    var call = 'uc.' + ucb.addAction(node, params, args.map(function(a, i) {
+      return { name: 'a[' + i + ']', type: a.type };
+    }));
+    var index = performs.indexOf(call);
+    if (index < 0) {
+      index = performs.push(call) - 1;
+    }
+    var values = args.length > 0
+      ? 'new ' + _('Object') + '[] { ' + args.map(function(a) { return a.name; }).join(', ') + ' }'
+      : 'null';
+    return [
+      builder.resultStack.push('super.defer(' + index + ', ' + builder.locDrop() + ', ' + values + ')')
+    ];
+  }
+  /// Возвращает код значения метки для предиката или границы повторения. Если выполнение
+  /// действий отложено, нужные для него действия выполняются сразу.
+  function force(code) {
+    return java.deferActions ? 'super.force(' + code + ')' : code;
+  }
+  /// Оборачивает код разбора листового элемента так, чтобы в режиме событий при успехе
+  /// записывался токен.
+  function token(code) {
+    return java.events ? 'super.token(super.offset(), ' + code + ')' : code;
+  }
+
+  /// Код входа в простой предикат и выхода из него. Ошибки в предикатах нет нужды сообщать,
+  /// т.к. мы только делаем проверку. Если в грамматике есть фиксирующие правила, считается
+  /// глубина предикатов, т.к. внутри них разбор не фиксируется (см. State.commit).
+  function enterPredicate() {
+    return guarded ? ['++super.silent;', '++super.predicates;'] : ['++super.silent;'];
+  }
+  function leavePredicate() {
+    return guarded ? ['--super.silent;', '--super.predicates;'] : ['--super.silent;'];
+  }
+
   function generateSimplePredicate(expression, negative, builder) {
-    // Ошибки в предикатах нет нужды сообщать, т.к. мы только делаем проверку.
-    // По этой же причине запоминаем текущую позицию, потому что потом нам надо будет вернуться.
-    builder.push(
-      builder.locPush(),
-      '++super.silent'
-    );
+    // Запоминаем текущую позицию, потому что потом нам надо будет вернуться.
+    builder.push(builder.locPush());
+    builder.pushAll(enterPredicate());
     // Предикаты создают собственную область видимости переменных
     generate(expression, builder.child(builder.sp, objects.clone(builder.env), null));
 
-    builder.push(
-      '--super.silent',
-      builder.locPop()
-    );
+    builder.pushAll(leavePredicate());
+    builder.push(builder.locPop());
     // Для положительных предикатов, достаточно просто откатить позицию, т.к. если он сопоставился,
     // разбор можно продолжить (и при этом иметь доступ к тому, что сопоставилось), а если нет, то
     // предикат оставит после себя FAILED на стеке.
@@ -137,7 +383,9 @@ function generateJavaCode(ast, options) {
   }
   function generateSemanticPredicate(node, negative, builder) {
     var params = objects.keys(builder.env);
-    var args = builder.resultStack.args(builder.env);
+    var args = builder.resultStack.args(builder.env).map(function(a) {
+      return { name: force(a.name), type: a.type };
+    });
     builder.indent(
       'if (' + (negative ? '!' : '') + 'uc.' + ucb.addPredicate(node, params, args) + ') {'
     );
@@ -147,11 +395,15 @@ function generateJavaCode(ast, options) {
     builder.push(builder.resultStack.replace('FAILED'));
     builder.dedent('}');
   }
-  function generateRange(expression, builder, min, max) {
+  function generateRange(node, builder, min, max) {
+    var expression = node.expression;
     function v(boundary) {
       return boundary.constant
         ? boundary.value
-        : '(('+_('Number')+')' + builder.local(boundary.value) + ').intValue()';
+        : '(('+_('Number')+')' + force(builder.local(boundary.value)) + ').intValue()';
+    }
+    if (java.charRuns && (expression.type === 'class' || expression.type === 'any')) {
+      return generateRun(node, builder, min, max, v);
     }
     // Если задан минимум, то, в том случае, если он больше 1, после разбора нескольких
     // элементов может понадобиться откатиться в начало правила, если количество элементов
@@ -163,57 +415,487 @@ function generateJavaCode(ast, options) {
     if (saveLoc) {
       builder.push(builder.locPush());
     }
-    builder.push(builder.resultStack.push('newArray()'));
+    // Если результат не используется, элементы не собираются в список, а только подсчитываются.
+    builder.push(builder.resultStack.push(node.unused ? 'null' : 'newArray()'));
 
     var arr = '((' + _('List') + ')' + builder.resultStack.top() + ')';
+    var size = arr + '.size()';
+    if (node.unused) {
+      size = builder.resultStack.top().replace(/^r/, 'n');
+      builder.indent('{');
+      builder.push('int ' + size + ' = 0;');
+    }
 
     builder.indent('do {/*range*/');
     // Если задан максимум, генерируем проверку максимума
     if (max && max.value) {
-      builder.push('if (' + arr + '.size() >= ' + v(max)+ ') { break; }');
+      builder.push('if (' + size + ' >= ' + v(max)+ ') { break; }');
     }
     // Один элемент в стеке занят под массив с результатом.
     generate(expression, builder.child(builder.sp + 1, objects.clone(builder.env), null));
+    var element = builder.resultStack.pop();
     builder.push(
-      'if (' + builder.resultStack.top() + ' == FAILED) { break; }',
-      arr + '.add(' + builder.resultStack.pop() + ');'
+      'if (' + element + ' == FAILED) { break; }',
+      node.unused ? '++' + size + ';' : arr + '.add(' + element + ');'
     );
     builder.dedent('} while (true);/*range*/');
 
     // Если задан минимум, генерируем его проверку. Если минимум задан в 0 элементов, то он
     // фактически отсутствует, поэтому проверка не нужна.
     if (!min.constant || min.value > 0) {
-      builder.indent('if (' + arr + '.size() < ' + v(min) + ') {');
+      builder.indent('if (' + size + ' < ' + v(min) + ') {');
       if (saveLoc) {
         builder.push(builder.locPop());
       }
       builder.push(builder.resultStack.replace('FAILED'));
       builder.dedent('}');
     }
+    if (node.unused) {
+      builder.dedent('}');
+    }
   }
 
-  var patterns = makeConstantBuilder(_('Pattern'),  'p', function(value, ignoreCase) {
-    var p = _('Pattern');
-    return [
-      p,
-      '.compile("',
-      escape(value),
-      '", ',
-      ignoreCase ? p + '.CASE_INSENSITIVE | ' : '',
-      p + '.DOTALL | ',
-      p + '.UNICODE_CASE',
-      ')',
-    ].join('');
+  /// Генерирует повторение одиночного символа, результатом которого является текст от начала
+  /// до конца повторения. Символы сопоставляются без создания объектов и не собираются в список.
+  /// @v Функция, возвращающая код значения границы повторения.
+  function generateRun(node, builder, min, max, v) {
+    var expression = node.expression;
+    var matcher = expression.type === 'any'
+      ? 'super.matchAny()'
+      : 'super.matchClass(' + classes.add(CharSet.fromClass(expression), expression.inverted) + ', ' + expectedOf(expression) + ')';
+
+    builder.push(builder.locPush());
+    var start = builder.locationStack.top();
+    // В режиме событий повторение сообщается одним токеном.
+    var span = java.events ? 'super.span(' + builder.tape() + ', ' + start + ');' : null;
+    var text = node.unused ? 'null' : 'super.toText(' + start + ')';
+    builder.indent('{/*run*/');
+    builder.push(
+      'int n = 0;',
+      'while (' + (max && max.value ? 'n < ' + v(max) + ' && ' : '') + matcher + ') { ++n; }'
+    );
+    // Если задан минимум, генерируем его проверку. Если минимум задан в 0 элементов, то он
+    // фактически отсутствует, поэтому проверка не нужна.
+    if (!min.constant || min.value > 0) {
+      builder.indent('if (n < ' + v(min) + ') {');
+      builder.push(
+        builder.locPop(),
+        builder.resultStack.push('FAILED')
+      );
+      builder.dedent('} else {');
+      builder.indent();
+      if (span) {
+        builder.push(span);
+      }
+      builder.push(builder.resultStack.replace(text));
+      builder.dedent('}');
+    } else {
+      if (span) {
+        builder.push(span);
+      }
+      builder.locDrop();
+      builder.push(builder.resultStack.push(text));
+    }
+    builder.dedent('}/*run*/');
+  }
+
+  /// Проверяет, можно ли разобрать выражение, не формируя его результата, а только сдвигая позицию
+  /// (см. generateScan).
+  function isScannable(node) {
+    switch (node.type) {
+      case 'literal':
+      case 'class':
+      case 'any':          return true;
+      case 'labeled':
+      case 'simple_and':
+      case 'simple_not':
+      case 'optional':
+      case 'zero_or_more':
+      case 'one_or_more':  return isScannable(node.expression);
+      case 'range':        return !node.delimiter && isScannable(node.expression);
+      case 'sequence':     return node.elements.every(isScannable);
+      case 'choice':       return node.alternatives.every(isScannable);
+    }
+    return false;
+  }
+  /// Узлы, которые можно вынести во вспомогательный метод. Метки изменяют окружение вызвавшего
+  /// их узла, поэтому выносятся не они, а их выражения; листья не выносятся, т.к. их вызов не
+  /// меньше их кода.
+  var outlinable = {
+    choice: true, sequence: true, action: true, text: true, named: true, optional: true,
+    zero_or_more: true, one_or_more: true, range: true, simple_and: true, simple_not: true,
+  };
+  /// Возвращает дочерние выражения узла.
+  function childrenOf(node) {
+    return node.alternatives || node.elements || (node.expression ? [node.expression] : []);
+  }
+  /// Оценивает размер байт-кода, генерируемого для узла без учета дочерних выражений, в байтах.
+  /// @labels Количество меток, доступных узлу (аргументов действий и предикатов).
+  function ownSize(node, labels) {
+    switch (node.type) {
+      case 'choice':       return 20 * node.alternatives.length;
+      case 'sequence':     return 20 + 35 * node.elements.length;
+      case 'action':       return 40 + 8 * labels;
+      case 'text':
+      case 'named':        return 30;
+      case 'optional':     return 15;
+      case 'zero_or_more':
+      case 'one_or_more':  return 40;
+      case 'range':        return 70;
+      case 'simple_and':
+      case 'simple_not':   return 35;
+      case 'semantic_and':
+      case 'semantic_not': return 25 + 8 * labels;
+      case 'rule_ref':     return 10;
+      case 'literal':
+      case 'class':
+      case 'any':          return 15;
+    }
+    return 0;
+  }
+  /// Проверяет, что выражение использует метки окружения: содержит действия, семантические
+  /// предикаты или границы повторений из меток.
+  function usesLabels(node) {
+    switch (node.type) {
+      case 'action':
+      case 'semantic_and':
+      case 'semantic_not': return true;
+      case 'range':
+        if (!node.min.constant || node.max && !node.max.constant) {
+          return true;
+        }
+    }
+    return childrenOf(node).some(usesLabels);
+  }
+  /// Разбивает выбор со слишком большим количеством альтернатив на вложенные выборы, каждый
+  /// из которых затем может быть вынесен целиком: упорядоченный выбор ассоциативен, поэтому
+  /// результат разбора и ожидания не меняются. Множество FIRST вложенного выбора -- объединение
+  /// множеств его альтернатив, чтобы неподходящие группы пропускались без вызова метода.
+  function regroup(node) {
+    /// Объединение множеств FIRST альтернатив группы. Если группа не подходит, записываются
+    /// ожидания всех ее альтернатив, поэтому для больших групп проверка не генерируется.
+    function first(chunk) {
+      var reports = [].concat.apply([], chunk.map(function(n) { return n.firstSet ? n.firstSet.reports : []; }));
+      if (reports.length > 8 || !chunk.every(function(n) { return n.firstSet; })) {
+        return null;
+      }
+      return {
+        ranges:  chunk.reduce(function(r, n) { return CharSet.union(r, n.firstSet.ranges); }, []),
+        reports: reports,
+      };
+    }
+    var width = Math.max(2, Math.floor(java.methodBudget / 60));
+    var alternatives = node.alternatives;
+    while (alternatives.length > width) {
+      var groups = [];
+      for (var i = 0; i < alternatives.length; i += width) {
+        var chunk = alternatives.slice(i, i + width);
+        groups.push(chunk.length === 1 ? chunk[0] : {
+          type:         'choice',
+          alternatives: chunk,
+          location:     node.location,
+          returnType:   node.returnType,
+          firstSet:     first(chunk),
+        });
+      }
+      alternatives = groups;
+    }
+    node.alternatives = alternatives;
+  }
+  /// Оценивает размер байт-кода выражения и помечает свойством `outlined` дочерние выражения,
+  /// которые нужно вынести во вспомогательные методы, чтобы оценка не превышала `methodBudget`.
+  /// Выносятся самые большие альтернативы выборов и элементы последовательностей, сами они
+  /// разделяются так же. Выносить единственное дочернее выражение бессмысленно: размер кода
+  /// просто переедет в другой метод.
+  /// @labels Количество меток, доступных выражению.
+  /// @return Оценка размера кода выражения с учетом вынесенных выражений.
+  function planSplit(node, labels) {
+    if (node.type === 'text' && java.scanLoops && isScannable(node.expression)) {
+      // Сканирующий цикл генерируется без вызовов generate, поэтому его части не выносятся.
+      var size = 0;
+      (function measure(n) { size += ownSize(n, 0); childrenOf(n).forEach(measure); })(node);
+      return size;
+    }
+    if (node.type === 'choice') {
+      regroup(node);
+    }
+    var inner = labels;
+    var children = childrenOf(node).map(function(child) {
+      var size = planSplit(child, inner);
+      var expression = child.type === 'labeled' ? child.expression : child;
+      // Вызов вспомогательного метода передает ему все доступные метки, если они нужны.
+      var passed = usesLabels(expression) ? inner : 0;
+      var call = 10 + 2 * passed;
+      // Метки элементов последовательности доступны ее последующим элементам.
+      if (child.type === 'labeled' && node.type === 'sequence') {
+        ++inner;
+      }
+      return { node: expression, size: size, call: call, labels: passed };
+    });
+    var total = children.reduce(function(sum, c) { return sum + c.size; }, ownSize(node, labels));
+    if (node.type !== 'choice' && node.type !== 'sequence') {
+      return total;
+    }
+    children
+      // Метки передаются параметрами, а их количество у метода JVM ограничено 255 слотами
+      .filter(function(c) { return outlinable[c.node.type] && c.size > c.call && c.labels < 250; })
+      .sort(function(a, b) { return b.size - a.size; })
+      .some(function(c) {
+        if (total <= java.methodBudget) {
+          return true;
+        }
+        c.node.outlined = true;
+        total -= c.size - c.call;
+        return false;
+      });
+    return total;
+  }
+  /// Проверяет, что выражение при неудаче сопоставления не сдвигает позицию, поэтому перед его
+  /// сопоставлением не требуется сохранять позицию для отката.
+  function isAtomic(node) {
+    switch (node.type) {
+      case 'literal':
+      case 'class':
+      case 'any':     return true;
+      case 'labeled': return isAtomic(node.expression);
+    }
+    return false;
+  }
+  /// Генерирует код, сопоставляющий выражение без формирования результата. При неудаче
+  /// сопоставления выполняется `break` на метку @fail; откат позиции при этом выполняет код,
+  /// которому принадлежит метка.
+  /// @label Функция, возвращающая новое уникальное в пределах сканирования имя метки.
+  function generateScan(node, builder, fail, label) {
+    function v(boundary) {
+      return boundary.constant
+        ? boundary.value
+        : '(('+_('Number')+')' + force(builder.local(boundary.value)) + ').intValue()';
+    }
+    var ok, inner, n;
+    switch (node.type) {
+      case 'literal': {
+        var e = expectedOf(node);
+        var bytes = java.utf8 && /[^\x00-\x7F]/.test(node.value);
+        builder.push('if (' + (node.ignoreCase
+          ? bytes
+            ? 'super.parseUtf8LiteralIgnoreCase("' + escape(foldCase(node.value)) + '", "' + escape(upperCase(node.value)) + '", ' + e + ') == FAILED'
+            : '!super.matchLiteral("' + escape(foldCase(node.value)) + '", "' + escape(upperCase(node.value)) + '", ' + e + ')'
+          : '!super.matchLiteral("' + escape(bytes ? utf8Bytes(node.value) : node.value) + '", ' + e + ')'
+        ) + ') { break ' + fail + '; }');
+        return;
+      }
+      case 'class':
+        builder.push(
+          'if (!super.matchClass(' + classes.add(CharSet.fromClass(node), node.inverted) + ', ' + expectedOf(node) + ')) { break ' + fail + '; }'
+        );
+        return;
+      case 'any':
+        builder.push('if (!super.matchAny()) { break ' + fail + '; }');
+        return;
+      case 'labeled':
+        return generateScan(node.expression, builder, fail, label);
+      case 'sequence':
+        // Частично сопоставившуюся последовательность откатывает владелец метки @fail.
+        node.elements.forEach(function(e) { generateScan(e, builder, fail, label); });
+        return;
+      case 'choice': {
+        var save = !node.alternatives.every(isAtomic);
+        ok = label();
+        if (save) {
+          builder.push(builder.locPush());
+        }
+        builder.indent(ok + ': {');
+        node.alternatives.forEach(function(a, i) {
+          inner = label();
+          builder.indent(inner + ': {');
+          generateScan(a, builder, inner, label);
+          builder.push('break ' + ok + ';');
+          builder.dedent('}');
+          if (save && i < node.alternatives.length - 1) {
+            builder.push(builder.locRestore());
+          }
+        });
+        if (save) {
+          builder.push(builder.locPop());
+        }
+        builder.push('break ' + fail + ';');
+        builder.dedent('}');
+        return;
+      }
+      case 'simple_and':
+      case 'simple_not':
+        inner = label();
+        builder.push(builder.locPush());
+        builder.pushAll(enterPredicate());
+        if (node.type === 'simple_and') {
+          ok = label();
+          builder.indent(ok + ': {');
+          builder.indent(inner + ': {');
+          generateScan(node.expression, builder, inner, label);
+          builder.push('break ' + ok + ';');
+          builder.dedent('}');
+          builder.pushAll(leavePredicate());
+          builder.push('break ' + fail + ';');
+          builder.dedent('}');
+        } else {
+          builder.indent(inner + ': {');
+          generateScan(node.expression, builder, inner, label);
+          builder.pushAll(leavePredicate());
+          builder.push('break ' + fail + ';');
+          builder.dedent('}');
+        }
+        builder.pushAll(leavePredicate());
+        builder.push(builder.locPop());
+        return;
+      case 'optional':
+        if (isAtomic(node.expression)) {
+          // Неудачное сопоставление не сдвигает позицию, поэтому его результат можно игнорировать.
+          inner = label();
+          builder.indent(inner + ': {');
+          generateScan(node.expression, builder, inner, label);
+          builder.dedent('}');
+          return;
+        }
+        ok = label();
+        inner = label();
+        builder.indent(ok + ': {');
+        builder.push(builder.locPush());
+        builder.indent(inner + ': {');
+        generateScan(node.expression, builder, inner, label);
+        builder.push('break ' + ok + ';');
+        builder.dedent('}');
+        builder.push(builder.locPop());
+        builder.dedent('}');
+        return;
+      case 'zero_or_more':
+      case 'one_or_more':
+      case 'range': {
+        var min = node.type === 'zero_or_more' ? { constant: true, value: 0 }
+                : node.type === 'one_or_more'  ? { constant: true, value: 1 } : node.min;
+        var max = node.type === 'range' ? node.max : null;
+        var counted = !min.constant || min.value > 0 || max && max.value;
+        var atomic = isAtomic(node.expression);
+        inner = label();
+        n = 'n' + inner;
+        builder.indent('{/*scan*/');
+        if (counted) {
+          builder.push('int ' + n + ' = 0;');
+        }
+        builder.indent('while (' + (max && max.value ? n + ' < ' + v(max) : 'true') + ') {');
+        if (!atomic) {
+          builder.push(builder.locPush());
+        }
+        builder.indent(inner + ': {');
+        generateScan(node.expression, builder, inner, label);
+        if (counted) {
+          builder.push('++' + n + ';');
+        }
+        builder.push('continue;');
+        builder.dedent('}');
+        if (!atomic) {
+          builder.push(builder.locPop());
+        }
+        builder.push('break;');
+        builder.dedent('}');
+        if (!min.constant || min.value > 0) {
+          builder.push('if (' + n + ' < ' + v(min) + ') { break ' + fail + '; }');
+        }
+        builder.dedent('}/*scan*/');
+        return;
+      }
+    }
+    throw new Error('Node of type "' + node.type + '" can not be scanned');
+  }
+
+  /// Классы символов компилируются в битовые маски и таблицы диапазонов во время генерации,
+  /// в том числе с развернутыми заранее вариантами регистра для регистронезависимых классов.
+  var classes = makeConstantBuilder(_('CharClass'), 'c', function(ranges, inverted) {
+    return 'new ' + _('CharClass') + '(' + CharSet.toJavaArgs(ranges, inverted, escape).join(', ') + ')';
   });
+  /// Ожидания получают плотные номера, по которым парсер собирает их в битовом множестве.
   var expected = makeConstantBuilder(_('Expected'), 'e', function(type, value, description) {
-    var e = _('Expected');
-    return 'new ' + e + '(' + e + '.Type.' + type
+    return _('Expected') + '.Type.' + type
         + ', ' + (value       ? '"' + escape(value)       + '"' : 'null')
-        + ', ' + (description ? '"' + escape(description) + '"' : 'null')
-        + ')';
+        + ', ' + (description ? '"' + escape(description) + '"' : 'null');
+  }, function(args, i) {
+    var e = _('Expected');
+    return 'new ' + e + '(' + e + '.FIRST_ID + ' + i + ', ' + args + ')';
   });
 
-  var generate = visitor.build({
+  /// Возвращает имя константы с описанием ожидания, которое записывается при неудачном
+  /// сопоставлении указанного узла (литерала, класса символов или именованного выражения).
+  function expectedOf(node) {
+    switch (node.type) {
+      case 'named':   return expected.add('RULE', null, node.name);
+      case 'literal': return expected.add(
+        'LITERAL',
+        node.ignoreCase ? node.value.toLowerCase() : node.value,
+        '"' + escape(node.value) + '"'
+      );
+      case 'class':   return expected.add('PATTERN', makeRegexString(node), node.rawText);
+    }
+    throw new Error('Node of type "' + node.type + '" does not report expectations');
+  }
+
+  /// Генерируемое в данный момент правило: его узел, номер и код вынесенных из него
+  /// вспомогательных методов (см. planSplit).
+  var current = null;
+  /// Генерирует код узла или, если узел помечен для выноса во вспомогательный метод, вызов
+  /// этого метода.
+  function generate(node, builder) {
+    return node.outlined ? generateOutlined(node, builder) : generateNode.apply(null, arguments);
+  }
+  /// Генерирует вспомогательный метод разбора выражения и помещает результат его вызова на
+  /// вершину стека результатов. Метод получает значения всех доступных выражению меток и, как и
+  /// любое выражение, при неудаче оставляет позицию разбора неизменной.
+  function generateOutlined(node, builder) {
+    var name = r(current.rule.name) + '$' + (current.helpers.length + 1);
+    // Выражениям, не использующим метки, окружение не нужно.
+    var labels = usesLabels(node) ? objects.keys(builder.env) : [];
+    var args = labels.length > 0 ? builder.resultStack.args(builder.env).map(function(a) { return a.name; }) : [];
+    builder.push(builder.resultStack.push(name + '(' + args.join(', ') + ')'));
+
+    var code = [];
+    // Резервируем место до генерации, чтобы вложенные методы получили следующие номера.
+    current.helpers.push(code);
+    var helper = makeRuleBuilder(
+      _('Object'), lazyLines ? 'int' : _('Position'), code, null,
+      java.streaming, guarded, java.events || java.deferActions, java.profile ? current.index : null
+    );
+    helper.indent(
+      'private ' + _('Object') + ' ' + name + '('
+        + labels.map(function(l, i) { return _('Object') + ' a' + i; }).join(', ') + ') {'
+    );
+    helper.push(
+      null,// зарезервировано для переменных из стека результатов
+      null,// зарезервировано для переменных из стека позиций
+      ''
+    );
+    if (java.streaming) {
+      helper.push(
+        'final int pins = super.pinned();',
+        ''
+      );
+    }
+    // Метки получают те же номера в стеке результатов метода, что и аргументы.
+    var env = {};
+    labels.forEach(function(label, i) {
+      helper.push(helper.resultStack.push('a' + i));
+      env[label] = { index: i, type: builder.env[label].type };
+    });
+    generateNode(node, helper.child(labels.length - 1, env, builder.action));
+    helper.push('');
+    if (java.streaming) {
+      helper.push('super.unpin(pins);');
+    }
+    helper.push('return ' + helper.resultStack.top() + ';');
+    helper.dedent('}');
+
+    code[1] += helper.resultStack.defines();
+    code[2] += helper.locDefines();
+  }
+
+  var generateNode = visitor.build({
     grammar: function(node) {
       node.initializers.forEach(generate);
 
@@ -254,38 +936,122 @@ function generateJavaCode(ast, options) {
           + ' {'
       );
 
-      b.push('/*~~~~~~~~~~~~~~~~~~~~~~~ PATTERNS ~~~~~~~~~~~~~~~~~~~~~~~*/');
-      b.pushAll(patterns.defines());
+      b.push('/*~~~~~~~~~~~~~~~~~~~~~~~~ CLASSES ~~~~~~~~~~~~~~~~~~~~~~~*/');
+      b.pushAll(classes.defines());
       b.push('/*~~~~~~~~~~~~~~~~~ EXPECTED DEFINITIONS ~~~~~~~~~~~~~~~~~*/');
       b.pushAll(expected.defines());
 
+      b.push(
+        '/*~~~~~~~~~~~~~~~~~~~~~~ PARSER POOL ~~~~~~~~~~~~~~~~~~~~~~~*/',
+        'public static final ' + _('ParserPool') + '<' + defaultType + ', ' + java.className + '> POOL'
+          + ' = new ' + _('ParserPool') + '<' + defaultType + ', ' + java.className + '>('
+          + 'new ' + _('ParserPool') + '.Factory<' + java.className + '>() {',
+        '  @' + _('Override'),
+        '  public ' + java.className + ' create() { return new ' + java.className + '(); }',
+        '});'
+      );
       b.push('/*~~~~~~~~~~~~~~~~~ ALLOWED START RULES ~~~~~~~~~~~~~~~~~~*/');
       options.allowedStartRules.forEach(function(name) {
         var rule = asts.findRule(ast, name);
         var type = boxed(rule.returnType);
+        // Генерирует точку входа, разбирающую данные парсером из пула.
+        // @params Список формальных параметров метода.
+        // @args Аргументы для вызова `init`.
+        // @io `true`, если данные читаются из потока и ошибки ввода-вывода нужно пробросить.
+        function entry(params, args, io) {
+          b.push(
+            '@'+_('Override'),
+            'public '+type+' parse('+params+')' + (io ? ' throws '+_('IOException') : '') + ' {',
+            '  final ' + java.className + ' p = POOL.acquire();',
+            '  try {',
+            '    p.init(' + args + ');'
+          );
+          b.pushAll(finish('p.' + r(name) + '()', '(' + type + ')', 'p.', '  ').map(function(l) { return '    ' + l; }));
+          if (io === 'stream') {
+            b.push(
+              '  } catch ('+_('InputException')+' ex) {',
+              '    throw ex.getCause();'
+            );
+          }
+          b.push(
+            '  } finally {',
+            '    POOL.release(p);',
+            '  }',
+            '}'
+          );
+        }
         b.indent('public static final '
           + _('IBaseParser')+'<' + type + '> '
           + toUpperSnakeCase(rule.name)
           + ' = new '+_('IBaseParser')+'<'+type+'>() {'
         );
+        entry(_('CharSequence')+' input', 'input');
         b.push(
           '@'+_('Override'),
-          'public '+type+' parse('+_('CharSequence')+' input) {',
-          '  final ' + java.className + ' p = new ' + java.className + '();',
-          '  p.init(input);',
-          '  return ('+type+')p.finalize(p.' + r(name) + '());',
-          '}',
+          'public '+_('ParseResult')+'<'+type+'> tryParse('+_('CharSequence')+' input) {',
+          '  final ' + java.className + ' p = POOL.acquire();',
+          '  try {',
+          '    p.init(input);',
+          '    try {'
+        );
+        b.pushAll(finish('p.' + r(name) + '()', '', 'p.', '  ', false, 'complete').map(function(l) { return '      ' + l; }));
+        b.push(
+          '    } catch ('+_('SyntaxError')+' ex) {',
+          '      return '+_('ParseResult')+'.failure(ex);',
+          '    }',
+          '  } finally {',
+          '    POOL.release(p);',
+          '  }',
+          '}'
+        );
+        entry(_('ByteBuffer')+' input', 'input');
+        entry('byte[] input', 'input');
+        entry(_('Reader')+' input', 'input', 'stream');
+        entry(_('ReadableByteChannel')+' input, '+_('Charset')+' charset', 'input, charset', 'stream');
+        b.push(
           '@'+_('Override'),
-          'public '+type+' parse('+_('ByteBuffer')+' input) {',
-          '  final ' + java.className + ' p = new ' + java.className + '();',
-          '  p.init(input);',
-          '  return ('+type+')p.finalize(p.' + r(name) + '());',
+          'public '+type+' parse('+_('Path')+' input) throws '+_('IOException')+' {',
+          '  try ('+_('FileChannel')+' ch = '+_('FileChannel')+'.open(input, '+_('StandardOpenOption')+'.READ)) {',
+          '    return parse(ch);',
+          '  }',
+          '}'
+        );
+        entry(_('FileChannel')+' input', 'input', 'file');
+        b.dedent('};');
+      });
+      if (records.length > 0) {
+        b.push('/*~~~~~~~~~~~~~~~~~~~~~~ RECORD RULES ~~~~~~~~~~~~~~~~~~~~~~*/');
+      }
+      records.forEach(function(rule) {
+        var type = boxed(rule.returnType);
+        var list = _('List') + '<' + type + '>';
+        b.indent('public static final '
+          + _('RecordParser') + '<' + type + '> '
+          + toUpperSnakeCase(rule.name) + '_RECORDS'
+          + ' = new ' + _('RecordParser') + '<' + type + '>("' + escape(recordDelimiter(rule)) + '") {'
+        );
+        b.push(
+          '@' + _('Override'),
+          'public ' + list + ' parse(' + _('CharSequence') + ' input) {',
+          '  final ' + java.className + ' p = POOL.acquire();',
+          '  try {',
+          '    p.init(input);'
+        );
+        b.pushAll(finish('p.records$' + rule.name + '()', '(' + list + ')', 'p.', '  ').map(function(l) { return '    ' + l; }));
+        b.push(
+          '  } finally {',
+          '    POOL.release(p);',
+          '  }',
           '}',
-          '@'+_('Override'),
-          'public '+type+' parse(byte[] input) {',
-          '  final ' + java.className + ' p = new ' + java.className + '();',
-          '  p.init(input);',
-          '  return ('+type+')p.finalize(p.' + r(name) + '());',
+          '@' + _('Override'),
+          'protected ' + list + ' parse(' + _('CharSequence') + ' input, ' + _('Position') + ' from, int end, boolean errors) {',
+          '  final ' + java.className + ' p = POOL.acquire();',
+          '  try {',
+          '    p.init(input, from, end, errors);',
+          '    return (' + list + ')p.finalize(p.records$' + rule.name + '());',
+          '  } finally {',
+          '    POOL.release(p);',
+          '  }',
           '}'
         );
         b.dedent('};');
@@ -293,62 +1059,230 @@ function generateJavaCode(ast, options) {
 
       b.push(
         'private final ' + userCodeClass + ' uc = new ' + userCodeClass + '(this);',
-        '',
-        '//<editor-fold defaultstate="collapsed" desc="API">',
-        '@' + _('Override'),
-        'public ' + defaultType + ' parse(' + _('CharSequence') + ' input) {',
-        '    super.init(input);',
-        '    return (' + defaultType + ')super.finalize(' + r(defaultRule.name) + '());',
-        '}',
-        '@' + _('Override'),
-        'public Object parse(' + _('CharSequence') + ' input, ' + _('String') + ' startRule) {',
-        '    super.init(input);',
-        '    return super.finalize(parseRule(startRule));',
-        '}',
-        '',
-        '@' + _('Override'),
-        'public ' + defaultType + ' parse(' + _('ByteBuffer') + ' input) {',
-        '    super.init(input);',
-        '    return (' + defaultType + ')super.finalize(' + r(defaultRule.name) + '());',
-        '}',
-        '@' + _('Override'),
-        'public Object parse(' + _('ByteBuffer') + ' input, ' + _('String') + ' startRule) {',
-        '    super.init(input);',
-        '    return super.finalize(parseRule(startRule));',
-        '}',
-        '',
+        ''
+      );
+      if (lazyLines) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean lazyLines() { return true; }',
+          ''
+        );
+      }
+      if (java.streaming) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean tracksBacktracking() { return true; }',
+          ''
+        );
+      }
+      if (java.utf8) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean utf8() { return true; }',
+          ''
+        );
+      }
+      if (java.twoPassErrors) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean twoPassErrors() { return true; }',
+          ''
+        );
+      }
+      if (!java.errorStackTraces) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean errorStackTraces() { return false; }',
+          ''
+        );
+      }
+      if (java.deferActions) {
+        b.push(
+          '@' + _('Override'),
+          'protected boolean deferActions() { return true; }',
+          '@' + _('Override'),
+          'protected ' + _('Object') + ' perform(int action, ' + _('Object') + '[] a) {',
+          '  switch (action) {'
+        );
+        performs.forEach(function(call, i) {
+          b.push('    case ' + i + ': return ' + call + ';');
+        });
+        b.push(
+          '    default: return super.perform(action, a);',
+          '  }',
+          '}',
+          ''
+        );
+      }
+      if (java.events || java.profile) {
+        b.push(
+          'private static final ' + _('String') + '[] RULES = {',
+          '  ' + ast.rules.map(function(rule) { return '"' + rule.name + '"'; }).join(', '),
+          '};',
+          '@' + _('Override'),
+          'protected ' + _('String') + ' ruleName(int rule) { return RULES[rule]; }',
+          ''
+        );
+      }
+      if (java.profile) {
+        // Статистика общая для всех экземпляров парсера, каждый экземпляр прибавляет к ней свои
+        // счетчики по окончании разбора.
+        b.push(
+          'private static final ' + _('ParseStats') + ' STATS = new ' + _('ParseStats') + '('
+            + '"' + java.package + '.' + java.className + '", RULES);',
+          '@' + _('Override'),
+          'public ' + _('ParseStats') + ' stats() { return STATS; }',
+          ''
+        );
+      }
+      b.push(
+        '//<editor-fold defaultstate="collapsed" desc="API">'
+      );
+      // Генерирует пару методов API (с правилом по умолчанию и с указанным стартовым правилом).
+      // @params Список формальных параметров метода без стартового правила.
+      // @args Аргументы для вызова `init`.
+      // @io `'stream'`, если данные читаются из потока и ошибки чтения нужно пробросить как
+      //     IOException, `'file'`, если `init` может кинуть IOException.
+      function api(params, args, io) {
+        [false, true].forEach(function(withRule) {
+          var body = finish(
+            withRule ? 'parseRule(startRule)' : r(defaultRule.name) + '()',
+            withRule ? '' : '(' + defaultType + ')',
+            'super.',
+            '    '
+          );
+          b.push(
+            '@' + _('Override'),
+            'public ' + (withRule ? 'Object' : defaultType) + ' parse(' + params
+              + (withRule ? ', ' + _('String') + ' startRule' : '') + ')'
+              + (io ? ' throws ' + _('IOException') : '') + ' {',
+            '    super.init(' + args + ');'
+          );
+          if (io === 'stream') {
+            b.push('    try {');
+            b.pushAll(body.map(function(l) { return '        ' + l; }));
+            b.push(
+              '    } catch (' + _('InputException') + ' ex) {',
+              '        throw ex.getCause();',
+              '    }'
+            );
+          } else {
+            b.pushAll(body.map(function(l) { return '    ' + l; }));
+          }
+          b.push('}');
+        });
+        b.push('');
+      }
+      api(_('CharSequence') + ' input', 'input');
+      [false, true].forEach(function(withRule) {
+        b.push(
+          '@' + _('Override'),
+          'public ' + _('ParseResult') + '<' + (withRule ? 'Object' : defaultType) + '> tryParse('
+            + _('CharSequence') + ' input' + (withRule ? ', ' + _('String') + ' startRule' : '') + ') {',
+          '    super.init(input);',
+          '    try {'
+        );
+        b.pushAll(finish(
+          withRule ? 'parseRule(startRule)' : r(defaultRule.name) + '()',
+          '',
+          'super.',
+          '    ',
+          false,
+          'complete'
+        ).map(function(l) { return '        ' + l; }));
+        b.push(
+          '    } catch (' + _('SyntaxError') + ' ex) {',
+          '        return ' + _('ParseResult') + '.failure(ex);',
+          '    }',
+          '}'
+        );
+      });
+      b.push('');
+      api(_('ByteBuffer') + ' input', 'input');
+      api('byte[] input', 'input');
+      api(_('Reader') + ' input', 'input', 'stream');
+      api(_('ReadableByteChannel') + ' input, ' + _('Charset') + ' charset', 'input, charset', 'stream');
+      b.push(
         '@' + _('Override'),
-        'public ' + defaultType + ' parse(byte[] input) {',
-        '    super.init(input);',
-        '    return (' + defaultType + ')super.finalize(' + r(defaultRule.name) + '());',
+        'public ' + defaultType + ' parse(' + _('Path') + ' input) throws ' + _('IOException') + ' {',
+        '    try (' + _('FileChannel') + ' ch = ' + _('FileChannel') + '.open(input, ' + _('StandardOpenOption') + '.READ)) {',
+        '        return parse(ch);',
+        '    }',
         '}',
         '@' + _('Override'),
-        'public Object parse(byte[] input, ' + _('String') + ' startRule) {',
-        '    super.init(input);',
-        '    return super.finalize(parseRule(startRule));',
+        'public Object parse(' + _('Path') + ' input, ' + _('String') + ' startRule) throws ' + _('IOException') + ' {',
+        '    try (' + _('FileChannel') + ' ch = ' + _('FileChannel') + '.open(input, ' + _('StandardOpenOption') + '.READ)) {',
+        '        return parse(ch, startRule);',
+        '    }',
         '}',
+        ''
+      );
+      api(_('FileChannel') + ' input', 'input', 'file');
+      // Повторный разбор после изменения данных; неудачный разбор всегда повторяется полностью.
+      [false, true].forEach(function(withRule) {
+        b.push(
+          'public ' + (withRule ? 'Object' : defaultType) + ' reparse(int offset, int removed, '
+            + _('CharSequence') + ' inserted' + (withRule ? ', ' + _('String') + ' startRule' : '') + ') {',
+          '    super.edit(offset, removed, inserted);'
+        );
+        b.pushAll(finish(
+          withRule ? 'parseRule(startRule)' : r(defaultRule.name) + '()',
+          withRule ? '' : '(' + defaultType + ')',
+          'super.',
+          '    ',
+          true
+        ).map(function(l) { return '    ' + l; }));
+        b.push('}');
+      });
+      b.push(
         '//</editor-fold>',
         '',
         '//<editor-fold defaultstate="collapsed" desc="Вспомогательные функции">',
         'private '+_('Object')+' parseRule('+_('String')+' ruleName) {',
-        '    try {',
-        '        final '+_('Method')+' m = getClass().getDeclaredMethod("'+prefix+'"+ruleName);',
-        '        final '+_('Rule')+' a = m.getAnnotation('+_('Rule')+'.class);',
-        '        if (a == null) {',
-        '            throw new '+_('NoSuchRuleException')+'("\\"" + ruleName + "\\" is not a rule name");',
-        '        }',
-        '        if (!a.isStart()) {',
-        '            throw new '+_('NoSuchRuleException')+'("Can\'t start parsing from rule \\"" + ruleName + "\\".");',
-        '        }',
-        '        return m.invoke(this);',
-        '    } catch ('+_('IllegalAccessException'),
-        '            |'+_('IllegalArgumentException'),
-        '            |'+_('InvocationTargetException'),
-        '            |'+_('NoSuchMethodException'),
-        '            |'+_('SecurityException')+' ex) {',
-        '        throw new '+_('NoSuchRuleException')+'(ex);',
+        // switch по строке выбросил бы NullPointerException вместо исключения из контракта IParser
+        '    if (ruleName == null) {',
+        '        throw new '+_('NoSuchRuleException')+'("null is not a rule name");',
         '    }',
-        '}',
+        '    switch (ruleName) {'
+      );
+      // Выбираем правило прямым переходом, а не через рефлексию: правила, с которых нельзя начинать
+      // разбор, известны уже при генерации.
+      ast.rules.forEach(function(rule) {
+        b.push(
+          '        case "' + escape(rule.name) + '": ' + (options.allowedStartRules.indexOf(rule.name) >= 0
+            ? 'return ' + r(rule.name) + '();'
+            : 'throw new '+_('NoSuchRuleException')+'("Can\'t start parsing from rule \\"" + ruleName + "\\".");'
+          )
+        );
+      });
+      b.push(
+        '        default: throw new '+_('NoSuchRuleException')+'("\\"" + ruleName + "\\" is not a rule name");',
+        '    }',
+        '}'
+      );
+      // Разбирает правило-запись, пока оно сопоставляется (как `Record*`). Список создается
+      // через newArray, чтобы при отложенных действиях finalize заменил их результаты значениями.
+      // Каждая разобранная запись участка не должна просматривать символы следующего участка,
+      // иначе участок разбит неверно (см. State.checkChunk).
+      records.forEach(function(rule) {
+        var type = boxed(rule.returnType);
+        b.push(
+          '@' + _('SuppressWarnings') + '("unchecked")',
+          'private ' + _('List') + '<' + type + '> records$' + rule.name + '() {',
+          '    final ' + _('List') + '<' + _('Object') + '> result = (' + _('List') + '<' + _('Object') + '>)super.newArray();',
+          '    while (true) {',
+          '        final int start = super.offset();',
+          '        final ' + _('Object') + ' r = ' + r(rule.name) + '();',
+          '        if (r == FAILED) { break; }',
+          '        super.checkChunk();',
+          '        result.add(r);',
+          '        if (super.offset() == start) { break; }',
+          '    }',
+          '    return (' + _('List') + '<' + type + '>)(' + _('List') + '<?>)result;',
+          '}'
+        );
+      });
+      b.push(
         '//</editor-fold>',
         '',
         '//<editor-fold defaultstate="collapsed" desc="Функции разбора правил">'
@@ -370,10 +1304,30 @@ function generateJavaCode(ast, options) {
 
     rule: function(node) {
       var code = [];
-      var builder = makeRuleBuilder(_('Object'), _('Position'), code);
-      var isStart = options.allowedStartRules.indexOf(node.name) > 0;
+      // В режиме ленивого отслеживания строк позиция однозначно определяется смещением,
+      // поэтому для отката сохраняем только его.
+      var index = ast.rules.indexOf(node);
+      var builder = makeRuleBuilder(
+        _('Object'), lazyLines ? 'int' : _('Position'), code, null,
+        java.streaming, guarded, java.events || java.deferActions, java.profile ? index : null
+      );
+      var isStart = options.allowedStartRules.indexOf(node.name) >= 0;
+      var memoize = isMemoized(node);
+      var cut = isCut(node);
+      current = { rule: node, index: index, helpers: [] };
+      if (java.methodBudget > 0) {
+        planSplit(node.expression, 0);
+      }
+      /// Оборачивает код результата правила в подсчет вызова для профилирования.
+      function profile(code) {
+        return java.profile
+          ? 'super.profile(' + index + ', start, ' + (java.profileTime ? 'time, ' : '') + code + ')'
+          : code;
+      }
       builder.indent(
-        '@' + _('Rule') + '(name="' + node.name + '", isStart=' + isStart + ')',
+        '@' + _('Rule') + '(name="' + node.name + '", isStart=' + isStart
+          + (memoize ? ', memoize=true' : '')
+          + (cut ? ', cut=true' : '') + ')',
         // Возвращаем Object, а не тип узла, т.к. может вернуться FAILED, а он имеет свой тип.
         'private ' + _('Object') + ' ' + r(node.name) + '() {'
       );
@@ -382,21 +1336,66 @@ function generateJavaCode(ast, options) {
         null,// зарезервировано для переменных из стека позиций
         ''
       );
+      if (memoize || java.profile) {
+        builder.push('final int start = super.offset();');
+        if (java.profileTime) {
+          builder.push('final long time = ' + _('System') + '.nanoTime();');
+        }
+      }
+      if (memoize) {
+        // Если правило уже разбиралось в этой позиции, сразу возвращаем запомненный результат.
+        builder.push(
+          'final int cached = super.memoLookup(' + index + ', start);',
+          'if (cached >= 0) { return ' + profile('super.memoRestore(cached)') + '; }',
+          ''
+        );
+      } else
+      if (java.profile) {
+        builder.push('');
+      }
+      if (java.streaming) {
+        // Позиции, сохраненные правилом, регистрируются в парсере над позициями вызвавших его правил.
+        builder.push(
+          'final int pins = super.pinned();',
+          ''
+        );
+      }
+      if (java.events) {
+        builder.push(
+          'final int tape = super.enter(' + index + ');',
+          ''
+        );
+      }
       generate(node.expression, builder);
+      builder.push('');
+      if (java.events) {
+        // При неудаче события правила отменяются.
+        builder.push('super.exit(' + index + ', tape, ' + builder.result() + ');');
+      }
+      if (java.streaming) {
+        builder.push('super.unpin(pins);');
+      }
+      if (cut) {
+        // После успешного разбора правила разбор к предшествующим данным больше не вернется.
+        builder.push('if (' + builder.result() + ' != FAILED) { super.commit(); }');
+      }
       builder.push(
-        '',
-        'return ' + builder.result() + ';'
+        'return ' + profile(memoize
+          ? 'super.memoStore(' + index + ', start, ' + builder.result() + ')'
+          : builder.result()
+        ) + ';'
       );
       builder.dedent('}');
 
       code[2] += builder.resultStack.defines();
-      code[3] += builder.locationStack.defines();
+      code[3] += builder.locDefines();
 
-      return code;
+      // Вспомогательные методы следуют за методом правила.
+      return code.concat.apply(code, current.helpers);
     },
 
     named: function(node, builder) {
-      var e = expected.add('RULE', null, node.name);
+      var e = expectedOf(node);
 
       builder.push(
         '++super.silent;',
@@ -408,7 +1407,8 @@ function generateJavaCode(ast, options) {
         '--super.silent;',
         'if (' + builder.resultStack.top() + ' == FAILED) {'
       );
-      builder.push(builder.resultStack.push('super.fail(' + e + ')'));
+      // Результат уже равен FAILED, записываем только ожидание самого выражения.
+      builder.push('super.fail(' + e + ');');
       builder.dedent('}');
     },
 
@@ -416,8 +1416,26 @@ function generateJavaCode(ast, options) {
       builder.indent('do {/*choice*/');
       node.alternatives.forEach(function(n, i, a) {
         builder.push('/*alternative ' + (i+1) + '*/');
+        // Если известно, с каких символов может начинаться альтернатива, то пробуем ее только
+        // тогда, когда текущий символ один из них. В противном случае записываем те же ожидания,
+        // что записались бы при неудачном разборе альтернативы.
+        // Одиночные литералы и классы символов проверяют первый символ сами, поэтому для них
+        // дополнительная проверка ничего не сэкономит.
+        var first = java.firstSets && n.type !== 'literal' && n.type !== 'class' && n.firstSet;
+        if (first) {
+          builder.indent('if (super.lookahead(' + classes.add(first.ranges, false) + ')) {');
+        }
         // Для каждой альтернативы набор переменных свой
         generate(n, builder.child(builder.sp, objects.clone(builder.env), null));
+        if (first) {
+          builder.dedent();
+          builder.indent('} else {');
+          first.reports.forEach(function(report) {
+            builder.push('super.fail(' + expectedOf(report) + ');');
+          });
+          builder.push(builder.resultStack.replace('FAILED'));
+          builder.dedent('}');
+        }
         // Если элемент не последний в массиве, то генерируем проверку
         if (i+1 < a.length) {
           builder.push(
@@ -486,18 +1504,11 @@ function generateJavaCode(ast, options) {
       var args  = builder.resultStack.args(builder.env);
       var elems = builder.resultStack.pop(node.elements.length);
       if (builder.action) {
-        builder.push(
-          builder.locMark(),
-          builder.resultStack.push('uc.' + ucb.addAction(
-            builder.action,
-            objects.keys(builder.env),
-            args
-          ))
-        );
+        builder.pushAll(callAction(builder.action, builder, objects.keys(builder.env), args));
       } else {
-        builder.push(builder.resultStack.push('newArray(' + elems.join(', ') + ')'));
+        builder.push(builder.resultStack.push(node.unused ? 'null' : 'newArray(' + elems.join(', ') + ')'));
         if (node.elements.length > 0) {
-          builder.locationStack.pop();
+          builder.locDrop();
         }
       }
 
@@ -519,11 +1530,39 @@ function generateJavaCode(ast, options) {
     },
 
     text: function(node, builder) {
+      if (java.scanLoops && isScannable(node.expression)) {
+        // Сопоставляем выражение одним циклом, не формируя результатов его частей.
+        var labels = 0;
+        var label = function() { return 's' + labels++; };
+        var scan = label();
+        builder.push(
+          builder.locPush(),
+          builder.resultStack.push('FAILED')
+        );
+        builder.indent(scan + ': {');
+        generateScan(node.expression, builder, scan, label);
+        if (java.events) {
+          builder.push('super.span(' + builder.tape() + ', ' + builder.locationStack.top() + ');');
+        }
+        builder.push(builder.resultStack.replace(
+          node.unused ? 'null' : 'super.toText(' + builder.locationStack.top() + ')'
+        ));
+        builder.dedent('}');
+        builder.indent('if (' + builder.resultStack.top() + ' == FAILED) {');
+        builder.push(builder.locPop());
+        builder.dedent('}');
+        return;
+      }
       builder.push(builder.locPush());
       // Внутри узла новая область видимости переменных, поэтому клонируем окружение.
       generate(node.expression, builder.child(builder.sp, objects.clone(builder.env), null));
       builder.indent('if (' + builder.resultStack.pop() + ' != FAILED) {');
-      builder.push(builder.resultStack.push('super.toText(' + builder.locationStack.pop() + ')'));
+      // В режиме событий события выражения заменяются одним токеном.
+      if (java.events) {
+        builder.push('super.span(' + builder.tape() + ', ' + builder.locationStack.top() + ');');
+      }
+      var from = builder.locDrop();
+      builder.push(builder.resultStack.push(node.unused ? 'null' : 'super.toText(' + from + ')'));
       builder.dedent('}');
     },
 
@@ -536,15 +1575,15 @@ function generateJavaCode(ast, options) {
     },
 
     zero_or_more: function(node, builder) {
-      generateRange(node.expression, builder, { constant: true, value: 0 }, null, null);
+      generateRange(node, builder, { constant: true, value: 0 }, null);
     },
 
     one_or_more: function(node, builder) {
-      generateRange(node.expression, builder, { constant: true, value: 1 }, null, null);
+      generateRange(node, builder, { constant: true, value: 1 }, null);
     },
 
     range: function(node, builder) {
-      generateRange(node.expression, builder, node.min, node.max, node.delimiter);
+      generateRange(node, builder, node.min, node.max);
     },
 
     simple_and: function(node, builder) {
@@ -591,10 +1630,8 @@ function generateJavaCode(ast, options) {
           '',
           'if (' + builder.resultStack.top() + ' != FAILED) {'
         );
-        builder.push(
-          builder.locMark(),
-          builder.resultStack.replace('uc.' + ucb.addAction(node, params, args))
-        );
+        builder.resultStack.pop();
+        builder.pushAll(callAction(node, builder, params, args));
         builder.dedent('}');
       }
     },
@@ -605,30 +1642,31 @@ function generateJavaCode(ast, options) {
     },
 
     literal: function(node, builder) {
-      var e = expected.add(
-        'LITERAL',
-        node.ignoreCase ? node.value.toLowerCase() : node.value,
-        '"' + escape(node.value) + '"'
-      );
-      // Помещаем результат разбора класса символов на вершину стека результатов.
-      builder.push(builder.resultStack.push(
-        'super.parseLiteral("' + escape(node.value) + '", ' + e + ', ' + (node.ignoreCase ? 'true' : 'false') + ')'
-      ));
+      var e = expectedOf(node);
+      // При разборе UTF-8 литералы из символов ASCII сравниваются с байтами как есть, остальные
+      // заранее кодируются (или, без учета регистра, сравниваются с декодированными символами).
+      var bytes = java.utf8 && /[^\x00-\x7F]/.test(node.value);
+      // Помещаем результат разбора литерала на вершину стека результатов. Для регистронезависимых
+      // литералов заранее вычисляем варианты регистра, чтобы не делать этого при каждом сопоставлении.
+      builder.push(builder.resultStack.push(token(node.ignoreCase
+        ? 'super.' + (bytes ? 'parseUtf8LiteralIgnoreCase' : 'parseLiteral')
+          + '("' + escape(foldCase(node.value)) + '", "' + escape(upperCase(node.value)) + '", ' + e + ')'
+        : bytes
+          ? 'super.parseUtf8Literal("' + escape(node.value) + '", "' + escape(utf8Bytes(node.value)) + '", ' + e + ')'
+          : 'super.parseLiteral("' + escape(node.value) + '", ' + e + ')'
+      )));
     },
 
     "class": function(node, builder) {
-      var value = makeRegexString(node);
-      var v = patterns.add(value, node.ignoreCase);
-      var e = expected.add('PATTERN', value, node.rawText);
+      var v = classes.add(CharSet.fromClass(node), node.inverted);
+      var e = expectedOf(node);
       // Помещаем результат разбора класса символов на вершину стека результатов.
-      builder.push(builder.resultStack.push(
-        'super.parsePattern(' + v + ', ' + e + ', ' + (node.inverted ? 'true' : 'false') + ')'
-      ));
+      builder.push(builder.resultStack.push(token('super.parseClass(' + v + ', ' + e + ')')));
     },
 
     any: function(node, builder) {
       // Помещаем результат разбора any на вершину стека результатов.
-      builder.push(builder.resultStack.push('super.parseAny()'));
+      builder.push(builder.resultStack.push(token('super.parseAny()')));
     }
   });
 
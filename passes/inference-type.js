@@ -8,11 +8,22 @@ function inferenceTypes(ast, options) {
   var emitError = options.collector.emitError;
   var emitInfo  = options.collector.emitInfo;
   var types     = options.inferenceTypes;
+  // Если `true`, повторения одиночного символа (класса символов или any) возвращают текст,
+  // а не список символов. Должно совпадать с одноименной настройкой генератора.
+  var charRuns  = options.java && options.java.charRuns;
 
   function none(node)     { return node.returnType = types.none; }
   function unit(node)     { return node.returnType = types.unit; }
   function range(node)    { return node.returnType = types.range; }
   function list(node)     { return node.returnType = types.list(inference(node.expression)); }
+  function repeat(node) {
+    var type = inference(node.expression);
+    var e = node.expression.type;
+    if (charRuns && (e === 'class' || e === 'any')) {
+      return node.returnType = types.range;
+    }
+    return node.returnType = types.list(type);
+  }
   function delegate(node) { return node.returnType = inference(node.expression); }
 
   var initTypes = visitor.build({
@@ -71,9 +82,9 @@ function inferenceTypes(ast, options) {
     simple_and:   none,
     simple_not:   none,
     optional:     function(node) { return node.returnType = types.option(inference(node.expression)); },
-    zero_or_more: list,
-    one_or_more:  list,
-    range:        list,
+    zero_or_more: repeat,
+    one_or_more:  repeat,
+    range:        repeat,
     semantic_and: none,
     semantic_not: none,
     rule_ref:     function(node) { return node.returnType = inference(asts.findRule(ast, node.name)); },
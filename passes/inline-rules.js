@@ -0,0 +1,168 @@
+'use strict';
+
+var asts    = require('pegjs/lib/compiler/asts');
+var visitor = require('pegjs/lib/compiler/visitor');
+
+/// Встраивает небольшие правила в места их вызова, чтобы вместо вызова метода `parse$<правило>`,
+/// со своими копиями позиций для отката и кадрами `do/while(false)`, выражение правила
+/// разбиралось непосредственно в вызывающем правиле.
+///
+/// Встраиваются только нерекурсивные правила без действий, семантических предикатов, границ
+/// повторений из меток и аннотаций (@Memoize, @Cut и т.п.), выражение которых (после встраивания
+/// в него вызываемых правил) содержит не более `java.inlineBudget` узлов (по умолчанию 8,
+/// 0 отключает встраивание). Метки во встроенных копиях убираются, т.к. их некому использовать.
+/// Именованные выражения встраиваются вместе с правилом, поэтому ожидания в сообщениях об
+/// ошибках не меняются. Встроенные правила, которые не являются стартовыми и больше нигде не
+/// вызываются, удаляются из грамматики; стартовые правила остаются вызываемыми со своими
+/// метаданными.
+///
+/// В режимах событий (`java.events`) и профилирования (`java.profile`) правила не встраиваются,
+/// т.к. события и статистика сообщаются для каждого правила.
+function inlineRules(ast, options) {
+  var java   = options.java || {};
+  var budget = java.inlineBudget !== undefined ? java.inlineBudget : 8;
+
+  if (budget <= 0 || java.events || java.profile) {
+    return;
+  }
+
+  /// Возвращает список имен правил, вызываемых из выражения.
+  function refs(node) {
+    var result = [];
+    var collect = visitor.build({
+      rule_ref: function(node) { result.push(node.name); }
+    });
+    collect(node);
+    return result;
+  }
+
+  /// Имена правил, из которых достижимо само правило (прямо или через другие правила).
+  var recursive = {};
+  ast.rules.forEach(function(rule) {
+    var visited = {};
+    var stack = refs(rule.expression);
+    while (stack.length > 0) {
+      var name = stack.pop();
+      if (name === rule.name) {
+        recursive[rule.name] = true;
+        break;
+      }
+      if (!visited[name]) {
+        visited[name] = true;
+        stack.push.apply(stack, refs(asts.findRule(ast, name).expression));
+      }
+    }
+  });
+
+  /// Проверяет, что выражение не содержит узлов, зависящих от окружения правила: действий,
+  /// семантических предикатов и границ повторений из меток.
+  function isPure(node) {
+    var pure = true;
+    var check = visitor.build({
+      action:       function() { pure = false; },
+      semantic_and: function() { pure = false; },
+      semantic_not: function() { pure = false; },
+      range: function(node) {
+        if (!node.min.constant || node.max && !node.max.constant) {
+          pure = false;
+        }
+        check(node.expression);
+      }
+    });
+    check(node);
+    return pure;
+  }
+
+  /// Возвращает количество узлов выражения.
+  function size(node) {
+    var count = 0;
+    function inc(node) { ++count; }
+    function child(node) { ++count; measure(node.expression); }
+    var measure = visitor.build({
+      named:        child,
+      choice:       function(node) { ++count; node.alternatives.forEach(measure); },
+      action:       child,
+      sequence:     function(node) { ++count; node.elements.forEach(measure); },
+      labeled:      child,
+      text:         child,
+      simple_and:   child,
+      simple_not:   child,
+      optional:     child,
+      zero_or_more: child,
+      one_or_more:  child,
+      range:        child,
+      semantic_and: inc,
+      semantic_not: inc,
+      rule_ref:     inc,
+      literal:      inc,
+      "class":      inc,
+      any:          inc,
+    });
+    measure(node);
+    return count;
+  }
+
+  /// Возвращает копию выражения без меток. Узлы копируются, чтобы последующие проходы могли
+  /// сохранять в них свои данные (типы, множества FIRST) независимо для каждого места вызова.
+  function copy(node) {
+    if (node.type === 'labeled') {
+      return copy(node.expression);
+    }
+    var result = {};
+    for (var k in node) if (node.hasOwnProperty(k)) {
+      result[k] = node[k];
+    }
+    if (node.expression)   { result.expression   = copy(node.expression); }
+    if (node.alternatives) { result.alternatives = node.alternatives.map(copy); }
+    if (node.elements)     { result.elements     = node.elements.map(copy); }
+    return result;
+  }
+
+  /// Выражения встраиваемых правил по их именам, `null` для невстраиваемых правил.
+  var bodies = {};
+
+  /// Встраивает правила во все вызовы внутри выражения, заменяя узлы `rule_ref` на месте.
+  function replace(node, parent, key) {
+    if (node.type === 'rule_ref') {
+      var body = inlinable(asts.findRule(ast, node.name));
+      if (body) {
+        parent[key] = copy(body);
+      }
+      return;
+    }
+    if (node.expression)   { replace(node.expression, node, 'expression'); }
+    if (node.alternatives) { node.alternatives.forEach(function(a, i) { replace(a, node.alternatives, i); }); }
+    if (node.elements)     { node.elements.forEach(function(e, i) { replace(e, node.elements, i); }); }
+  }
+
+  /// Возвращает выражение правила, если правило можно встроить, иначе `null`.
+  function inlinable(rule) {
+    if (bodies[rule.name] === undefined) {
+      bodies[rule.name] = null;
+      if (!recursive[rule.name] && !(rule.annotations && rule.annotations.length > 0)) {
+        // Правило нерекурсивно, поэтому встраивание в него вызываемых правил конечно.
+        replace(rule.expression, rule, 'expression');
+        if (isPure(rule.expression) && size(rule.expression) <= budget) {
+          bodies[rule.name] = rule.expression;
+        }
+      }
+    }
+    return bodies[rule.name];
+  }
+
+  ast.rules.forEach(function(rule) {
+    replace(rule.expression, rule, 'expression');
+  });
+
+  // Удаляем встроенные правила, которые больше не вызываются и не являются стартовыми.
+  var used = {};
+  options.allowedStartRules.forEach(function(name) { used[name] = true; });
+  ast.rules.forEach(function(rule) {
+    refs(rule.expression).forEach(function(name) { used[name] = true; });
+  });
+  ast.rules = ast.rules.filter(function(rule) {
+    return used[rule.name] || !bodies[rule.name];
+  });
+}
+
+module.exports = inlineRules;
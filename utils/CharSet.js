@@ -0,0 +1,165 @@
+'use strict';
+
+/// Множество символов, представленное отсортированным массивом непересекающихся и не
+/// соприкасающихся диапазонов кодов символов [from, to] (обе границы включительно).
+
+var MAX = 0xFFFF;
+
+/// Сортирует диапазоны и объединяет пересекающиеся и соприкасающиеся.
+function normalize(ranges) {
+  var sorted = ranges.slice().sort(function(a, b) { return a[0] - b[0]; });
+  var result = [];
+  sorted.forEach(function(r) {
+    var last = result[result.length - 1];
+    if (last && r[0] <= last[1] + 1) {
+      last[1] = Math.max(last[1], r[1]);
+    } else {
+      result.push([r[0], r[1]]);
+    }
+  });
+  return result;
+}
+/// Проверяет принадлежность кода символа множеству.
+function has(ranges, c) {
+  var lo = 0, hi = ranges.length - 1;
+  while (lo <= hi) {
+    var mid = (lo + hi) >>> 1;
+    if (c < ranges[mid][0]) { hi = mid - 1; } else
+    if (c > ranges[mid][1]) { lo = mid + 1; } else { return true; }
+  }
+  return false;
+}
+/// Классы символов, совпадающих без учета регистра: для каждого кода символа `c` содержит код
+/// символа-представителя его класса. Символы попадают в один класс, если связаны цепочкой
+/// преобразований `toUpperCase` и `toLowerCase` в любом направлении, поэтому, например, `ſ`
+/// совпадает с `s`, а `K` (знак Кельвина) -- с `k`. Строится при первом обращении.
+var caseClasses = null;
+function getCaseClasses() {
+  if (!caseClasses) {
+    caseClasses = new Int32Array(MAX + 1);
+    for (var c = 0; c <= MAX; ++c) {
+      caseClasses[c] = c;
+    }
+    function find(c) {
+      while (caseClasses[c] !== c) {
+        c = caseClasses[c] = caseClasses[caseClasses[c]];
+      }
+      return c;
+    }
+    function link(a, b) {
+      a = find(a);
+      b = find(b);
+      if (a !== b) {
+        caseClasses[Math.max(a, b)] = Math.min(a, b);
+      }
+    }
+    for (var c = 0; c <= MAX; ++c) {
+      var s = String.fromCharCode(c);
+      // Character.toUpperCase и Character.toLowerCase в java используют простые преобразования
+      // регистра, результат которых -- всегда один символ. Если же в js преобразование дает
+      // несколько символов, простое преобразование оставляет символ без изменений, кроме
+      // единственного случая `İ` -> `i̇`, где оно дает первый символ, `i`.
+      var u = s.toUpperCase();
+      var l = s.toLowerCase();
+      if (u.length === 1) { link(c, u.charCodeAt(0)); }
+      if (l.length === 1 || c === 0x130) { link(c, l.charCodeAt(0)); }
+    }
+    for (var c = 0; c <= MAX; ++c) {
+      caseClasses[c] = find(c);
+    }
+  }
+  return caseClasses;
+}
+/// Добавляет к множеству все символы, совпадающие с его символами без учета регистра, т.е. все
+/// символы классов регистра его символов. Отношение симметрично: символ совпадает с символом
+/// множества, если и только если тот совпадает с ним, поэтому множество включает и все символы,
+/// совпадающие с символами множества по правилам {@link String#equalsIgnoreCase} в java.
+function fold(ranges) {
+  var classes = getCaseClasses();
+  var roots = new Uint8Array(MAX + 1);
+  ranges.forEach(function(r) {
+    for (var c = r[0]; c <= r[1]; ++c) {
+      roots[classes[c]] = 1;
+    }
+  });
+  var extra = [];
+  for (var c = 0; c <= MAX; ++c) {
+    if (roots[classes[c]]) {
+      extra.push([c, c]);
+    }
+  }
+  return normalize(ranges.concat(extra));
+}
+/// Объединение двух множеств.
+function union(a, b) {
+  return normalize(a.concat(b));
+}
+/// Дополнение множества до множества всех символов.
+function invert(ranges) {
+  var result = [];
+  var next = 0;
+  ranges.forEach(function(r) {
+    if (r[0] > next) {
+      result.push([next, r[0] - 1]);
+    }
+    next = r[1] + 1;
+  });
+  if (next <= MAX) {
+    result.push([next, MAX]);
+  }
+  return result;
+}
+/// Строит множество по узлу класса символов грамматики. Инверсия класса не учитывается.
+/// @node Узел AST с типом `class`.
+function fromClass(node) {
+  var ranges = normalize(node.parts.map(function(part) {
+    return part instanceof Array
+      ? [part[0].charCodeAt(0), part[1].charCodeAt(0)]
+      : [part.charCodeAt(0), part.charCodeAt(0)];
+  }));
+  return node.ignoreCase ? fold(ranges) : ranges;
+}
+/// Строит множество из одного символа с учетом регистра.
+function fromChar(ch, ignoreCase) {
+  var c = ch.charCodeAt(0);
+  var ranges = [[c, c]];
+  return ignoreCase ? fold(ranges) : ranges;
+}
+
+function hex32(n) {
+  var s = (n >>> 0).toString(16).toUpperCase();
+  return '00000000'.substring(s.length) + s;
+}
+/// Возвращает литерал java типа long для 64-битной маски символов [base; base + 63].
+function mask(ranges, base) {
+  var words = [0, 0];
+  ranges.forEach(function(r) {
+    for (var c = Math.max(r[0], base); c <= Math.min(r[1], base + 63); ++c) {
+      var bit = c - base;
+      words[bit >> 5] |= 1 << (bit & 31);
+    }
+  });
+  return '0x' + hex32(words[1]) + hex32(words[0]) + 'L';
+}
+/// Возвращает аргументы конструктора org.pegjs.java.CharClass для указанного множества.
+/// @escape Функция экранирования строк java.
+/// @return Массив из строк с кодом аргументов.
+function toJavaArgs(ranges, inverted, escape) {
+  var high = '';
+  ranges.forEach(function(r) {
+    if (r[1] >= 128) {
+      high += String.fromCharCode(Math.max(r[0], 128), r[1]);
+    }
+  });
+  return [mask(ranges, 0), mask(ranges, 64), '"' + escape(high) + '"', inverted ? 'true' : 'false'];
+}
+
+module.exports = {
+  normalize:  normalize,
+  fold:       fold,
+  union:      union,
+  invert:     invert,
+  fromClass:  fromClass,
+  fromChar:   fromChar,
+  toJavaArgs: toJavaArgs,
+};
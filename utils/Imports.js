@@ -3,8 +3,8 @@
 function Imports(useFullNames) {
   var _imports = {};
 
-  for (var i = 1; i < arguments.length; ++i) {
-    var fullName = arguments[i];
+  /// Добавляет импорт класса с указанным полным именем.
+  this.add = function(fullName) {
     var j = fullName.lastIndexOf('.');
     var name = fullName.substring(j+1);
     if (name !== '*') {
@@ -12,6 +12,10 @@ function Imports(useFullNames) {
     }
   }
 
+  for (var i = 1; i < arguments.length; ++i) {
+    this.add(arguments[i]);
+  }
+
   this.resolve = function(localName) {
     var name = useFullNames ? _imports[localName] : localName;
     if (!name) {
@@ -3,22 +3,77 @@
 var CodeBuilder = require('./CodeBuilder');
 var VarStack    = require('./VarStack');
 
-function makeRuleBuilder(resultType, locationType, code, indentSequence) {
+/// @locationType String: Тип переменных стека позиций. Если равен 'int', в стеке сохраняются
+///               только смещения, иначе -- копии текущей позиции.
+/// @pinned Boolean: Если `true`, сохраняемые смещения регистрируются в парсере через `pin()`,
+///         чтобы при потоковом разборе не отбрасывались данные, к которым разбор может вернуться.
+///         Требует, чтобы в начале метода правила была объявлена переменная `pins`.
+/// @guarded Boolean: Если `true`, откат к сохраненным копиям позиции выполняется через `rewind()`,
+///          чтобы парсер мог проверить, не был ли разбор зафиксирован после них.
+/// @taped Boolean: Если `true`, вместе с каждой позицией для отката сохраняется размер ленты
+///        событий разбора и отложенных действий (`super.tape()`), а при откате записанные после
+///        нее события и действия отменяются.
+/// @profiled Number: Номер правила в грамматике, если перед каждым откатом нужно подсчитывать
+///           отдаваемые символы (`super.backtrack()`) для профилирования, иначе `null`.
+function makeRuleBuilder(resultType, locationType, code, indentSequence, pinned, guarded, taped, profiled) {
   /// Список переменных, в которые сохраняются результаты разбора правил.
   var resultStack   = new VarStack(resultType,   'r');
   /// Список переменных, в которые сохраняются позиции в разбираемом входе для возможного отката.
   var locationStack = new VarStack(locationType, 'l');
+  /// Список переменных, в которые сохраняются размеры ленты событий для позиций из `locationStack`.
+  var tapeStack     = new VarStack('int', 't');
+
+  /// Если позиция однозначно определяется смещением, для отката достаточно сохранять только
+  /// его, не создавая копий текущей позиции.
+  var offsets = locationType === 'int';
 
   var builder = new CodeBuilder(code, indentSequence);
 
+  /// Возвращает код, отменяющий события, записанные после сохранения позиции, или пустую строку.
+  function truncate(tape) {
+    return taped ? ' super.truncate(' + tape + ');' : '';
+  }
   function locPush() {
-    return locationStack.push('super.current.clone()');
+    var tape = taped ? ' ' + tapeStack.push('super.tape()') : '';
+    if (pinned) {
+      return locationStack.push('super.pin(pins + ' + locationStack.depth() + ')') + tape;
+    }
+    return locationStack.push(offsets ? 'super.offset()' : 'super.current.clone()') + tape;
+  }
+  /// Возвращает код, подсчитывающий символы, отдаваемые откатом к позиции, или пустую строку.
+  function backtrack(loc) {
+    return profiled != null ? 'super.backtrack(' + profiled + ', ' + loc + '); ' : '';
   }
   function locPop() {
-    return 'super.current = ' + locationStack.pop() + ';';
+    var tape = truncate(taped ? tapeStack.pop() : null);
+    var loc = locationStack.pop();
+    return backtrack(loc) + (offsets || guarded
+      ? 'super.rewind(' + loc + ');'
+      : 'super.current = ' + loc + ';') + tape;
+  }
+  /// Возвращает позицию к сохраненной на вершине стека, не освобождая ее, поэтому к ней можно
+  /// вернуться еще раз.
+  function locRestore() {
+    var loc = locationStack.top();
+    return backtrack(loc) + (offsets
+      ? 'super.rewind(' + loc + ');'
+      : guarded
+        ? 'super.rewind(' + loc + '.clone());'
+        : 'super.current = ' + loc + '.clone();') + truncate(taped ? tapeStack.top() : null);
   }
   function locMark() {
-    return 'super.mark = ' + locationStack.pop() + ';';
+    var loc = locDrop();
+    return offsets
+      ? 'super.markOffset = ' + loc + ';'
+      : 'super.mark = ' + loc + ';';
+  }
+  /// Освобождает позицию на вершине стека, не генерируя кода.
+  /// Возвращает имя переменной, в которой она сохранена.
+  function locDrop() {
+    if (taped) {
+      tapeStack.pop();
+    }
+    return locationStack.pop();
   }
 
   function make(sp, env, action) {
@@ -31,6 +86,7 @@ function makeRuleBuilder(resultType, locationType, code, indentSequence) {
       locationStack: locationStack,
 
       push:   builder.push,
+      pushAll: builder.pushAll,
       indent: builder.indent,
       dedent: builder.dedent,
 
@@ -38,7 +94,15 @@ function makeRuleBuilder(resultType, locationType, code, indentSequence) {
 
       locPush: locPush,
       locPop:  locPop,
+      locRestore: locRestore,
       locMark: locMark,
+      locDrop: locDrop,
+      /// Возвращает имя переменной с размером ленты событий для позиции на вершине стека.
+      tape: function() { return tapeStack.top(); },
+      /// Возвращает строку с определениями переменных стека позиций.
+      locDefines: function() {
+        return [locationStack.defines(), tapeStack.defines()].filter(Boolean).join(' ');
+      },
 
       local: function(label) { return resultStack.local(env[label]); },
       result: resultStack.result,
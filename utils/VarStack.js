@@ -43,6 +43,8 @@ function VarStack(type, varName) {
     return this.push(exprCode);
   }
 
+  /// Возвращает количество занятых в данный момент переменных стека.
+  this.depth = function() { return sp + 1; }
   /// Возвращает имя первой свободной переменной.
   this.top = function() { return s(sp); }
   /// Возвращает значение @i-ой с вершины стека переменной.